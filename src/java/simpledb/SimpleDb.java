@@ -41,6 +41,8 @@ public class SimpleDb {
                                 ts[index++] = Type.INT_TYPE;
                             else if (s.equalsIgnoreCase("string"))
                                 ts[index++] = Type.STRING_TYPE;
+                            else if (s.equalsIgnoreCase("varstring"))
+                                ts[index++] = Type.VAR_STRING_TYPE;
                             else {
                                 System.err.println("Unknown type " + s);
                                 return;
@@ -50,7 +52,7 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                    HeapFileEncoder.convertParallel(sourceTxtFile, targetDatFile,
                             BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
 
                 } catch (IOException e) {
@@ -209,6 +209,14 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the form <code>name (field type [pk], ...) [options]</code>, where
+     * options is a space separated list of table options: <code>mmap</code>
+     * (see {@link HeapFile#setMemoryMapped}), <code>slotted</code> (see
+     * {@link HeapFile#setSlotted}), <code>columnar</code> (see
+     * {@link HeapFile#setColumnar}), <code>compressed</code> (see
+     * {@link HeapFile#setCompressed}) and <code>checksum</code> (see
+     * {@link HeapFile#setChecksummed}). Field types are <code>int</code>,
+     * <code>string</code> and <code>varstring</code>.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -233,6 +241,8 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().equalsIgnoreCase("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().equalsIgnoreCase("varstring"))
+                        types.add(Type.VAR_STRING_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -250,6 +260,26 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                //table options may follow the schema, e.g. name (field type, ...) mmap slotted
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                for (String option : options.split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.equalsIgnoreCase("mmap"))
+                        tabHf.setMemoryMapped(true);
+                    else if (option.equalsIgnoreCase("slotted"))
+                        tabHf.setSlotted(true);
+                    else if (option.equalsIgnoreCase("columnar"))
+                        tabHf.setColumnar(true);
+                    else if (option.equalsIgnoreCase("compressed"))
+                        tabHf.setCompressed(true);
+                    else if (option.equalsIgnoreCase("checksum"))
+                        tabHf.setChecksummed(true);
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
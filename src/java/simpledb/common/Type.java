@@ -28,6 +28,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new IntField(readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,15 +51,106 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int offset) {
+            int strLen = readInt(data, offset);
+            return new StringField(new String(data, offset + 4, strLen), STRING_LEN);
+        }
+    }, VAR_STRING_TYPE() {
+        @Override
+        public int getLen() {
+            return STRING_LEN+4;
+        }
+
+        @Override
+        public boolean isFixedLength() {
+            return false;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readInt();
+                byte[] bs = new byte[strLen];
+                dis.readFully(bs);
+                dis.skipBytes(STRING_LEN-strLen);
+                return new StringField(new String(bs), STRING_LEN, this);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(byte[] data, int offset) {
+            int strLen = readInt(data, offset);
+            return new StringField(new String(data, offset + 4, strLen), STRING_LEN, this);
+        }
+
+        @Override
+        public int getCompactLen(Field f) {
+            return 4 + Math.min(((StringField) f).getValue().length(), STRING_LEN);
+        }
+
+        @Override
+        public int getCompactLen(byte[] data, int offset) {
+            return 4 + readInt(data, offset);
+        }
+
+        @Override
+        public void writeCompact(Field f, DataOutputStream dos) throws IOException {
+            String s = ((StringField) f).getValue();
+            if (s.length() > STRING_LEN) {
+                s = s.substring(0, STRING_LEN);
+            }
+            dos.writeInt(s.length());
+            dos.writeBytes(s);
+        }
     };
     
     public static final int STRING_LEN = 128;
 
   /**
-   * @return the number of bytes required to store a field of this type.
+   * @return the number of bytes required to store a field of this type. For
+   *   variable-length types this is the maximum, which is also the size of
+   *   the fixed-length format written by {@link Field#serialize}.
    */
     public abstract int getLen();
 
+  /**
+   * @return true if every field of this type is stored in getLen() bytes
+   *   in both the fixed-length and the compact format.
+   */
+    public boolean isFixedLength() {
+        return true;
+    }
+
+  /**
+   * @return the number of bytes {@link #writeCompact} writes for the given
+   *   field of this type.
+   */
+    public int getCompactLen(Field f) {
+        return getLen();
+    }
+
+  /**
+   * @return the number of bytes of the field of this type stored in compact
+   *   format at the given offset of the array.
+   */
+    public int getCompactLen(byte[] data, int offset) {
+        return getLen();
+    }
+
+  /**
+   * Writes the given field of this type in compact format, used by slotted
+   * pages: the same as {@link Field#serialize} for fixed-length types, while
+   * variable-length types only write as many bytes as the value needs.
+   * {@link #parse(byte[], int)} reads both formats.
+   */
+    public void writeCompact(Field f, DataOutputStream dos) throws IOException {
+        f.serialize(dos);
+    }
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
@@ -64,5 +160,19 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents are
+   *   read from the specified array, in the same format as
+   *   {@link #parse(DataInputStream)} or in compact format.
+   * @param data the array to read from
+   * @param offset the index of the first byte of the field
+   */
+    public abstract Field parse(byte[] data, int offset);
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
 
 }
@@ -49,7 +49,7 @@ public class Aggregate extends Operator {
         if(gfield != -1) {
             if (fieldType.equals(Type.INT_TYPE)) {
                 aggregator = new IntegerAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
-            } else if (fieldType.equals(Type.STRING_TYPE)) {
+            } else if (fieldType.equals(Type.STRING_TYPE) || fieldType.equals(Type.VAR_STRING_TYPE)) {
                 aggregator = new StringAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
             } else {
                 aggregator = null;
@@ -57,7 +57,7 @@ public class Aggregate extends Operator {
         }else {
             if (fieldType.equals(Type.INT_TYPE)) {
                 aggregator = new IntegerAggregator(gfield, Type.INT_TYPE, afield, aop);
-            } else if (fieldType.equals(Type.STRING_TYPE)) {
+            } else if (fieldType.equals(Type.STRING_TYPE) || fieldType.equals(Type.VAR_STRING_TYPE)) {
                 aggregator = new StringAggregator(gfield, Type.INT_TYPE, afield, aop);
             } else {
                 aggregator = null;
@@ -50,6 +50,7 @@ public class Filter extends Operator {
         while (child.hasNext()){
             Tuple next = child.next();
             if(p.filter(next)) {
+                next.detach();
                 childTups.add(next);
             }
         }
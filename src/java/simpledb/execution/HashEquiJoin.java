@@ -63,6 +63,7 @@ public class HashEquiJoin extends Operator {
         map.clear();
         while (child1.hasNext()) {
             t1 = child1.next();
+            t1.detach();
             //out relation 开始分组
             List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
             list.add(t1);
@@ -63,8 +63,11 @@ public class OrderBy extends Operator {
             TransactionAbortedException {
         child.open();
         // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            t.detach();
+            childTups.add(t);
+        }
         childTups.sort(new TupleComparator(orderByField, asc));
         it = childTups.iterator();
         super.open();
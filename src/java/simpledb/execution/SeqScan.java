@@ -22,6 +22,9 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    // fields of the table returned by this scan, or null for all of them
+    private int[] fields;
+    private TupleDesc projectedTupleDesc;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -45,6 +48,26 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Creates a sequential scan that returns only the given fields of each
+     * tuple, in the given order. Fields that are not returned are never
+     * decoded, which on tables using the columnar page layout also means their
+     * bytes are never touched.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, as for the other constructor.
+     * @param fields
+     *            the indexes in the table's TupleDesc of the fields to return.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        this(tid, tableid, tableAlias);
+        this.fields = fields.clone();
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -64,7 +87,8 @@ public class SeqScan implements OpIterator {
     }
 
     /**
-     * Reset the tableid, and tableAlias of this operator.
+     * Reset the tableid, and tableAlias of this operator, and make it return
+     * every field of the new table.
      * @param tableid
      *            the table to scan.
      * @param tableAlias
@@ -79,6 +103,7 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableid =tableid;
         this.tableAlias = tableAlias;
+        this.fields = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -90,6 +115,9 @@ public class SeqScan implements OpIterator {
         DbFile databaseFile = Database.getCatalog().getDatabaseFile(tableid);
         this.dbFileIterator = databaseFile.iterator(transactionId);
         dbFileIterator.open();
+        if (fields != null) {
+            projectedTupleDesc = getTupleDesc();
+        }
     }
 
     /**
@@ -99,20 +127,23 @@ public class SeqScan implements OpIterator {
      * name.  The alias and name should be separated with a "." character
      * (e.g., "alias.fieldName").
      *
+     * If this scan returns only some fields, the TupleDesc holds those fields.
+     *
      * @return the TupleDesc with field names from the underlying HeapFile,
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc tupleDesc = Database.getCatalog().getTupleDesc(tableid);
-        List<TupleDesc.TDItem> tupleDescList = tupleDesc.getTupleDescList();
-        String[] str = new String[tupleDescList.size()];
-        Type[] types = new Type[tupleDescList.size()];
-        for (int i = 0; i < tupleDescList.size(); i++) {
-            String fieldName = tupleDesc.getFieldName(i);
+        int n = fields == null ? tupleDesc.numFields() : fields.length;
+        String[] str = new String[n];
+        Type[] types = new Type[n];
+        for (int i = 0; i < n; i++) {
+            int field = fields == null ? i : fields[i];
+            String fieldName = tupleDesc.getFieldName(field);
             fieldName = tableAlias +"." +fieldName;
             str[i] = fieldName;
-            types[i] = tupleDesc.getFieldType(i);
+            types[i] = tupleDesc.getFieldType(field);
         }
         return new TupleDesc(types,str);
     }
@@ -125,7 +156,16 @@ public class SeqScan implements OpIterator {
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return dbFileIterator.next();
+        Tuple t = dbFileIterator.next();
+        if (fields == null) {
+            return t;
+        }
+        Tuple res = new Tuple(projectedTupleDesc);
+        for (int i = 0; i < fields.length; i++) {
+            res.setField(i, t.getField(fields[i]));
+        }
+        res.setRecordId(t.getRecordId());
+        return res;
     }
 
     public void close() {
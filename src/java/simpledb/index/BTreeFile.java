@@ -1,6 +1,9 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -35,6 +38,16 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    // long-lived channel for positional page I/O, opened on first use
+    private FileChannel channel;
+    /**
+     * Set for B+ trees whose pages are checksummed; the checksums are opened
+     * on first use. The root pointer page has index 0 and every other page
+     * its page number. See HeapFile#setChecksummed.
+     */
+    private volatile boolean checksummed;
+    private PageChecksums checksums;
+
     /**
      * Constructs a B+ tree file backed by the specified file.
      *
@@ -48,6 +61,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.checksummed = PageChecksums.exists(f);
     }
 
     /**
@@ -79,6 +93,99 @@ public class BTreeFile implements DbFile {
         return td;
     }
 
+    /**
+     * Returns the channel backing this BTreeFile, opening it on first use.
+     */
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = new RandomAccessFile(f, f.exists() && !f.canWrite() ? "r" : "rw").getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the offset in the file of the page with the given category and number.
+     * The root pointer page is stored first, followed by numbered pages starting at 1.
+     */
+    private static long pageOffset(int pgcateg, int pageNumber) {
+        if (pgcateg == BTreePageId.ROOT_PTR) {
+            return 0;
+        }
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
+    }
+
+    /**
+     * Enables or disables page checksums for this B+ tree, as
+     * HeapFile#setChecksummed does for heap files. The file must not be in
+     * use while this runs.
+     *
+     * @param checksummed true to checksum the pages of this file
+     */
+    public synchronized void setChecksummed(boolean checksummed) throws IOException {
+        if (checksummed == this.checksummed) {
+            return;
+        }
+        if (checksummed) {
+            PageChecksums sums = new PageChecksums(f, () -> getChannel().force(false));
+            if (f.length() > 0) {
+                sums.stamp(0, readPageData(BTreePageId.ROOT_PTR, 0));
+                for (int i = 1; i <= numPages(); i++) {
+                    sums.stamp(i, readPageData(BTreePageId.LEAF, i));
+                }
+            }
+            sums.force();
+            checksums = sums;
+        } else {
+            if (checksums != null) {
+                checksums.close();
+                checksums = null;
+            }
+            Files.deleteIfExists(PageChecksums.getChecksumFile(f).toPath());
+        }
+        this.checksummed = checksummed;
+    }
+
+    /**
+     * @return true if the pages of this B+ tree are checksummed
+     */
+    public boolean isChecksummed() {
+        return checksummed;
+    }
+
+    /**
+     * Returns the checksums of this file, opening them on first use, or null
+     * if it is not checksummed.
+     */
+    private PageChecksums getChecksums() throws IOException {
+        if (!checksummed) {
+            return null;
+        }
+        synchronized (this) {
+            if (checksums == null) {
+                checksums = new PageChecksums(f, () -> getChannel().force(false));
+            }
+            return checksums;
+        }
+    }
+
+    /**
+     * Write the given bytes as the page with the given category and number,
+     * using positional I/O.
+     */
+    private void writeAt(byte[] data, int pgcateg, int pageNumber) throws IOException {
+        PageChecksums sums = getChecksums();
+        if (sums != null) {
+            sums.stamp(pgcateg == BTreePageId.ROOT_PTR ? 0 : pageNumber, data);
+            sums.force();
+        }
+        long offset = pageOffset(pgcateg, pageNumber);
+        FileChannel fc = getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+    }
+
     /**
      * Read a page from the file on disk. This should not be called directly
      * but should be called from the BufferPool via getPage()
@@ -88,49 +195,54 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        byte[] pageBuf;
+        try {
+            pageBuf = readPageData(id.pgcateg(), id.getPageNumber());
+            PageChecksums sums = getChecksums();
+            int index = id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : id.getPageNumber();
+            if (sums != null && !sums.verify(index, pageBuf)) {
+                PageChecksums.mismatch(f, id.getPageNumber());
+            }
+        } catch (IOException | DbException e) {
+            throw new RuntimeException(e);
+        }
+        Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
+            } else if (id.pgcateg() == BTreePageId.INTERNAL) {
+                return new BTreeInternalPage(id, pageBuf, keyField);
+            } else if (id.pgcateg() == BTreePageId.LEAF) {
+                return new BTreeLeafPage(id, pageBuf, keyField);
+            } else { // id.pgcateg() == BTreePageId.HEADER
+                return new BTreeHeaderPage(id, pageBuf);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+    }
+
+    /**
+     * Reads the bytes of the page with the given category and number.
+     */
+    private byte[] readPageData(int pgcateg, int pageNumber) throws IOException {
+        int pageSize = pgcateg == BTreePageId.ROOT_PTR ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        long offset = pageOffset(pgcateg, pageNumber);
+        FileChannel fc = getChannel();
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, offset + buf.position()) == -1) {
+                break;
+            }
+        }
+        if (buf.position() == 0) {
+            throw new IllegalArgumentException("Read past end of table");
+        }
+        if (buf.hasRemaining()) {
+            throw new IllegalArgumentException("Unable to read "
+                    + pageSize + " bytes from BTreeFile");
+        }
+        return buf.array();
     }
 
     /**
@@ -141,17 +253,23 @@ public class BTreeFile implements DbFile {
      */
     public void writePage(Page page) throws IOException {
         BTreePageId id = (BTreePageId) page.getId();
+        writeAt(page.getPageData(), id.pgcateg(), id.getPageNumber());
+    }
 
-        byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
-        } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+    /**
+     * Stamps the checksums of the given pages and forces them once, so that
+     * writing the pages afterwards forces nothing more.
+     */
+    public void prepareWrites(List<Page> pages) throws IOException {
+        PageChecksums sums = getChecksums();
+        if (sums == null) {
+            return;
+        }
+        for (Page page : pages) {
+            BTreePageId id = (BTreePageId) page.getId();
+            sums.stamp(id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : id.getPageNumber(), page.getPageData());
         }
+        sums.force();
     }
 
     /**
@@ -1021,13 +1139,8 @@ public class BTreeFile implements DbFile {
         synchronized (this) {
             if (f.length() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                writeAt(BTreeRootPtrPage.createEmptyPageData(), BTreePageId.ROOT_PTR, 0);
+                writeAt(BTreeLeafPage.createEmptyPageData(), BTreePageId.LEAF, 1);
             }
         }
 
@@ -1081,12 +1194,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
+                emptyPageNo = numPages() + 1;
+                writeAt(BTreeInternalPage.createEmptyPageData(), BTreePageId.INTERNAL, emptyPageNo);
             }
         }
 
@@ -1115,10 +1224,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        writeAt(BTreePage.createEmptyPageData(), pgcateg, emptyPageNo);
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -359,6 +359,8 @@ public class BTreeLeafPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
+		// a tuple read from a heap page must not keep that page alive
+		t.detach();
 		tuples[goodSlot] = t;
 	}
 
@@ -18,6 +18,7 @@ public class BTreeRootPtrPage implements Page {
 	public final static int PAGE_SIZE = 9;
 
 	private boolean dirty = false;
+	private long lsn = -1;
 	private TransactionId dirtier = null;
 
 	private final BTreePageId pid;
@@ -140,6 +141,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
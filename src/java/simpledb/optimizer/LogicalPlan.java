@@ -327,7 +327,7 @@ public class LogicalPlan {
             if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c));
             else
-                f = new StringField(lf.c, Type.STRING_LEN);
+                f = new StringField(lf.c, Type.STRING_LEN, ftyp);
 
             Predicate p = null;
             try {
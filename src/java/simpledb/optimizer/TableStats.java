@@ -132,7 +132,7 @@ public class TableStats {
 
         for (int i = 0; i < tupleDesc.numFields(); i++) {
             Type fieldType = tupleDesc.getFieldType(i);
-            if(fieldType.equals(Type.STRING_TYPE)){
+            if(fieldType.equals(Type.STRING_TYPE) || fieldType.equals(Type.VAR_STRING_TYPE)){
                 continue;
             }
             intHistograms[i] = new IntHistogram(100,min[i],max[i]);
@@ -213,7 +213,7 @@ public class TableStats {
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
         Type type = constant.getType();
-        if (type.equals(Type.STRING_TYPE)) {
+        if (type.equals(Type.STRING_TYPE) || type.equals(Type.VAR_STRING_TYPE)) {
             StringHistogram stringHistogram = new StringHistogram(100);
             return stringHistogram.estimateSelectivity(op,((StringField)constant).getValue());
         } else if (type.equals(Type.INT_TYPE)) {
@@ -0,0 +1,93 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK replacement, the BufferPool's default policy. Every page has a
+ * reference bit, which a hit sets without taking a lock; the hand clears the
+ * bits of the pages it passes and stops at the first evictable page whose bit
+ * was already clear.
+ * <p>
+ * A page enters with its bit clear and only gets it when it is found again,
+ * so pages touched once by a scan go before pages that are being reused, as
+ * long as those are reused before the hand comes round.
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    private static final class Frame {
+        final PageId pid;
+        volatile boolean referenced;
+        // position of this frame in the clock
+        final int slot;
+
+        Frame(PageId pid, int slot) {
+            this.pid = pid;
+            this.slot = slot;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    // the clock; a slot is null once its page has been removed
+    private final List<Frame> clock = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        frames = new ConcurrentHashMap<>(capacity * 2);
+    }
+
+    @Override
+    public void pageAdded(PageId pid) {
+        Frame frame;
+        if (freeSlots.isEmpty()) {
+            frame = new Frame(pid, clock.size());
+            clock.add(frame);
+        } else {
+            frame = new Frame(pid, freeSlots.pop());
+            clock.set(frame.slot, frame);
+        }
+        frames.put(pid, frame);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        Frame frame = frames.get(pid);
+        // skip the write when the bit is already set, so hot pages are read-only
+        if (frame != null && !frame.referenced) {
+            frame.referenced = true;
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame != null) {
+            clock.set(frame.slot, null);
+            freeSlots.push(frame.slot);
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        // two turns of the clock: by the second every reference bit is clear
+        for (int i = 0; i < 2 * clock.size(); i++) {
+            if (hand >= clock.size()) {
+                hand = 0;
+            }
+            Frame frame = clock.get(hand++);
+            if (frame == null) {
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+            } else if (evictable.test(frame.pid)) {
+                return frame.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,220 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Page store of a compressed HeapFile. Every page is deflated on its own and
+ * appended to the table file, and a page map kept next to it (the table file
+ * name plus PAGE_MAP_SUFFIX) records where the latest image of each page
+ * starts and how long it is, so a single page can be located and inflated
+ * without touching the rest of the file.
+ * <p>
+ * The page map is an array of ENTRY_SIZE byte entries, entry i holding the
+ * offset (a long) and length (an int) of page i. A length of 0 means the page
+ * was never written and reads as all zeroes; a length equal to the page size
+ * means the image did not shrink and was stored as is.
+ * <p>
+ * Rewriting a page appends a new image and then updates its entry, leaving
+ * the old image behind as garbage, so this suits tables that are mostly read.
+ * HeapFile.setCompressed rewrites the file and drops the garbage.
+ */
+class CompressedPageFile {
+
+    static final String PAGE_MAP_SUFFIX = ".pagemap";
+    private static final int ENTRY_SIZE = 12;
+
+    private final FileChannel data;
+    private final FileChannel map;
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+    private int numPages;
+    // offset at which the next page image is appended
+    private long end;
+
+    /**
+     * Opens the compressed table stored in file, creating an empty one if
+     * neither the file nor its page map exists.
+     */
+    CompressedPageFile(File file) throws IOException {
+        data = new RandomAccessFile(file, "rw").getChannel();
+        map = new RandomAccessFile(getPageMapFile(file), "rw").getChannel();
+        end = data.size();
+        int n = (int) (map.size() / ENTRY_SIZE);
+        ByteBuffer buf = ByteBuffer.allocate(n * ENTRY_SIZE);
+        readFully(map, buf, 0);
+        buf.flip();
+        for (int i = 0; i < n; i++) {
+            setEntry(i, buf.getLong(), buf.getInt());
+        }
+    }
+
+    static File getPageMapFile(File file) {
+        return new File(file.getPath() + PAGE_MAP_SUFFIX);
+    }
+
+    /**
+     * @return true if file holds a compressed table
+     */
+    static boolean exists(File file) {
+        return getPageMapFile(file).exists();
+    }
+
+    synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of bytes stored for the given page, or -1 if it lies
+     *         beyond the end of the table
+     */
+    synchronized int storedLength(int pageNo) {
+        return pageNo < numPages ? lengths[pageNo] : -1;
+    }
+
+    /**
+     * Reads and inflates one page.
+     *
+     * @return the page image, or null if the page lies beyond the end of the
+     *         table
+     */
+    byte[] readPage(int pageNo, int pageSize) throws IOException {
+        long offset;
+        int length;
+        synchronized (this) {
+            if (pageNo >= numPages) {
+                return null;
+            }
+            offset = offsets[pageNo];
+            length = lengths[pageNo];
+        }
+        byte[] page = new byte[pageSize];
+        if (length == 0) {
+            return page;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(data, buf, offset);
+        if (length == pageSize) {
+            return buf.array();
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buf.array());
+            int n = inflater.inflate(page);
+            if (n != pageSize || !inflater.finished()) {
+                throw new IOException("compressed page " + pageNo + " is corrupt");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed page " + pageNo + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return page;
+    }
+
+    /**
+     * Deflates the given page image and appends it to the table, then points
+     * the page's entry in the page map at it.
+     */
+    void writePage(int pageNo, byte[] page) throws IOException {
+        byte[] image = compress(page);
+        synchronized (this) {
+            long offset = end;
+            writeFully(data, ByteBuffer.wrap(image), offset);
+            end += image.length;
+            for (int i = numPages; i < pageNo; i++) {
+                putEntry(i, 0, 0);
+            }
+            putEntry(pageNo, offset, image.length);
+        }
+    }
+
+    private static byte[] compress(byte[] page) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(page);
+            deflater.finish();
+            // anything that does not fit in less than a page is stored as is
+            byte[] out = new byte[page.length];
+            int n = deflater.deflate(out);
+            if (!deflater.finished() || n >= page.length) {
+                return page;
+            }
+            return Arrays.copyOf(out, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Drops every page at or after numPages, along with any image appended
+     * after the first of them was last written.
+     */
+    synchronized void truncate(int numPages, long dataLength) throws IOException {
+        if (numPages >= this.numPages) {
+            return;
+        }
+        this.numPages = numPages;
+        map.truncate((long) numPages * ENTRY_SIZE);
+        if (dataLength < end) {
+            data.truncate(dataLength);
+            end = dataLength;
+        }
+    }
+
+    /**
+     * @return the offset at which the next page image will be appended
+     */
+    synchronized long dataLength() {
+        return end;
+    }
+
+    void force() throws IOException {
+        data.force(false);
+        map.force(false);
+    }
+
+    void close() throws IOException {
+        data.close();
+        map.close();
+    }
+
+    private void putEntry(int pageNo, long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        buf.putLong(offset).putInt(length).flip();
+        writeFully(map, buf, (long) pageNo * ENTRY_SIZE);
+        setEntry(pageNo, offset, length);
+    }
+
+    private void setEntry(int pageNo, long offset, int length) {
+        if (pageNo >= offsets.length) {
+            int capacity = Math.max(offsets.length * 2, pageNo + 1);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        offsets[pageNo] = offset;
+        lengths[pageNo] = length;
+        numPages = Math.max(numPages, pageNo + 1);
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, offset + buf.position()) == -1) {
+                throw new IOException("unexpected end of compressed table");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+    }
+}
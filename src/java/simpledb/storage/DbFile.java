@@ -33,6 +33,18 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Prepares the given pages of this file to be written with writePage, so
+     * that whatever must be durable before they are written is forced once
+     * for all of them rather than once per page. Calling it is optional;
+     * files with nothing to prepare need not override it.
+     *
+     * @param pages the pages about to be written
+     * @throws IOException if the preparation fails
+     */
+    default void prepareWrites(List<Page> pages) throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,43 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * Decides which page the BufferPool evicts when it is full. The PageCache
+ * tells its policy about every page it adds, finds and removes, and asks it
+ * for a victim when a page has to make room for another.
+ * <p>
+ * pageAdded, pageRemoved and chooseVictim are called with the PageCache
+ * locked. pageAccessed is called on every cache hit, from any number of
+ * threads and without any lock, so it should be cheap; a policy that needs a
+ * lock there makes every hit take it.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when the page with the given id is added to the cache.
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * Called when the page with the given id is found in the cache, or
+     * replaced by a new version of itself.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called when the page with the given id leaves the cache, whether it was
+     * chosen as a victim or discarded.
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Chooses the page to evict among those evictable accepts.
+     *
+     * @return the id of the page to evict, or null if evictable accepts no
+     *         cached page
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
@@ -1,11 +1,19 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -28,6 +36,76 @@ public class HeapFile implements DbFile {
      */
     private File file;
     private TupleDesc tupleDesc;
+    /**
+     * Long-lived channel used for all page I/O, opened on first use. Pages are
+     * read and written with positional I/O so concurrent readers never
+     * serialize on a shared file pointer.
+     */
+    private FileChannel channel;
+
+    /**
+     * Size of each read-only mapping used in memory-mapped scan mode. Segments
+     * are mapped lazily and always hold a whole number of pages.
+     */
+    private static final int MAP_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private volatile boolean memoryMapped;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private int segmentPageSize;
+    // held shared while a page is copied out of a mapping, and exclusively
+    // while the file is cut short, which would make the copy fault (SIGBUS);
+    // always taken before this file's monitor
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+
+    // store tuples on slotted pages even though every field has a fixed length
+    private volatile boolean slotted;
+    // store the tuples of each page column by column
+    private volatile boolean columnar;
+
+    /**
+     * Set for tables kept in a CompressedPageFile, which is opened on first
+     * use. A table is compressed if its page map exists when it is opened.
+     */
+    private volatile boolean compressed;
+    private CompressedPageFile compressedPages;
+
+    /**
+     * Set for tables whose pages are checksummed; the checksums are opened on
+     * first use. A table is checksummed if its checksum file exists when it is
+     * opened.
+     */
+    private volatile boolean checksummed;
+    private PageChecksums checksums;
+
+    // bytes read from disk by readPage
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * Pages that may have an empty slot, so that insertTuple can go straight to
+     * a candidate page instead of visiting every page of the file. It is only a
+     * hint: a page is marked whenever it is read, written or has a tuple deleted
+     * while it has room, and unmarked when insertTuple finds it full. Built on
+     * the first insert by one pass over the file; see buildFreePages.
+     */
+    private BitSet freePages;
+
+    // pages marked and unmarked while the free-space map is being built,
+    // merged into it when the pass ends; null when no pass is running
+    private BitSet notedFree;
+    private BitSet notedFull;
+
+    /**
+     * Room left, in bytes as HeapPage.getRoom counts them, on slotted pages
+     * that have an empty slot but turned away a tuple too long for it, so
+     * that insertTuple skips them for tuples at least as long rather than
+     * fetch them again. Also a hint: kept up to date whenever such a page is
+     * read, written or has a tuple deleted, and dropped when it fills up.
+     */
+    private final Map<Integer, Integer> pageRoom = new HashMap<>();
+
+    /**
+     * Number of pages bulkLoad hands to each write call.
+     */
+    private static final int BULK_LOAD_BATCH_PAGES = 64;
 
     /**
      * hint中提到不要将所有tuple一次性放入内存
@@ -38,6 +116,10 @@ public class HeapFile implements DbFile {
         BufferPool bufferPool = Database.getBufferPool();
         Iterator<Tuple> iterator;
         int num = 0;
+        // pages below this number have already been handed to the read-ahead
+        int readAheadUpTo = 0;
+        // private frames of a large scan; see BufferPool#newScanRing
+        ScanRing ring;
 
         public MyIterator(TransactionId tid, Permissions permissions) {
             this.tid = tid;
@@ -48,9 +130,12 @@ public class HeapFile implements DbFile {
         public void open() throws DbException, TransactionAbortedException {
 
             num = 0;
+            readAheadUpTo = 1;
+            ring = bufferPool.newScanRing(numPages());
+            readAhead();
             HeapPageId heapPageId = new HeapPageId(getId(), num);
 
-            HeapPage page = (HeapPage) bufferPool.getPage(tid, heapPageId, permissions);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, heapPageId, permissions, ring);
             if (page == null) {
                 throw new DbException("null");
             } else {
@@ -58,14 +143,35 @@ public class HeapFile implements DbFile {
             }
         }
 
+        /**
+         * The iterator only ever moves forward one page at a time, so once it
+         * reaches the second half of the window already requested, ask the
+         * buffer pool to read the next window ahead of it. Scans using a ring
+         * do not read ahead, since read-ahead fills the shared pool.
+         */
+        private void readAhead() {
+            int window = bufferPool.getReadAheadPages();
+            if (window == 0 || ring != null || num + window / 2 < readAheadUpTo) {
+                return;
+            }
+            int end = Math.min(num + 1 + window, numPages());
+            List<PageId> pids = new ArrayList<>();
+            for (int i = Math.max(readAheadUpTo, num + 1); i < end; i++) {
+                pids.add(new HeapPageId(getId(), i));
+            }
+            readAheadUpTo = Math.max(readAheadUpTo, end);
+            bufferPool.readAhead(pids);
+        }
+
         public boolean nextPage() throws TransactionAbortedException, DbException {
             while (true) {
                 num = num + 1;
                 if (num >= numPages()) {
                     return false;
                 }
+                readAhead();
                 HeapPageId heapPageId = new HeapPageId(getId(), num);
-                HeapPage page = (HeapPage) bufferPool.getPage(tid, heapPageId, permissions);
+                HeapPage page = (HeapPage) bufferPool.getPage(tid, heapPageId, permissions, ring);
                 if (page == null) {
                     continue;
                 }
@@ -104,6 +210,7 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             iterator = null;
+            ring = null;
         }
     }
 
@@ -111,6 +218,8 @@ public class HeapFile implements DbFile {
         // some code goes here
         file = f;
         tupleDesc = td;
+        compressed = CompressedPageFile.exists(f);
+        checksummed = PageChecksums.exists(f);
     }
 
     /**
@@ -147,29 +256,353 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Returns the channel backing this HeapFile, opening it on first use.
+     */
+    synchronized FileChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = new RandomAccessFile(file, file.exists() && !file.canWrite() ? "r" : "rw").getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Enables or disables memory-mapped scan mode. In this mode pages missing
+     * from the BufferPool are copied straight out of read-only mappings of the
+     * table file instead of being read with a system call per page; pages beyond
+     * the mapped region (e.g. appended since it was mapped) fall back to channel
+     * reads. Dirty pages are always served by the BufferPool, which only asks
+     * the file for pages it does not hold.
+     *
+     * @param memoryMapped true to read pages through memory mappings
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            segments.clear();
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Selects the page layout of this table: the slotted layout described in
+     * the HeapPage constructor, or the default header bitmap. Tables with
+     * variable-length fields always use the slotted layout. Pages do not record
+     * which layout they use, so this must be chosen before the table has any
+     * tuples and then kept; slotted pages do record their format version.
+     *
+     * @param slotted true to store this table on slotted pages
+     */
+    public void setSlotted(boolean slotted) {
+        this.slotted = slotted;
+    }
+
+    /**
+     * @return true if the pages of this table use the slotted layout
+     */
+    public boolean isSlotted() {
+        return slotted || !tupleDesc.isFixedLength();
+    }
+
+    /**
+     * Selects the columnar (PAX) page layout described in the HeapPage
+     * constructor for this table, which keeps each field of a page's tuples
+     * together so that scans touching a few fields of a wide table skip the
+     * bytes of the others. It has no effect on tables using the slotted
+     * layout. Like {@link #setSlotted}, this must be chosen before the table
+     * has any tuples and then kept.
+     *
+     * @param columnar true to store the pages of this table column by column
+     */
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+    }
+
+    /**
+     * @return true if the pages of this table use the columnar layout
+     */
+    public boolean isColumnar() {
+        return columnar && !isSlotted();
+    }
+
+    /**
+     * Switches this table between plain pages and compressed pages, rewriting
+     * the whole file in the new format. Compressed tables deflate each page on
+     * its own and keep a page map next to the table file so that any page can
+     * be read without inflating the others; they take less disk space and scan
+     * I/O at the cost of CPU per page read, and every page write appends a new
+     * image, which suits archival tables that are rarely updated. See
+     * CompressedPageFile for the format. Memory-mapped mode has no effect on
+     * compressed tables.
+     * <p>
+     * The table must not be in use while it is rewritten, and any of its pages
+     * dirty in the BufferPool must be flushed first.
+     *
+     * @param compressed true to store this table compressed
+     */
+    public synchronized void setCompressed(boolean compressed) throws IOException {
+        if (compressed == this.compressed) {
+            return;
+        }
+        int pageSize = BufferPool.getPageSize();
+        int n = numPages();
+        File tmp = new File(file.getPath() + ".tmp");
+        File tmpMap = CompressedPageFile.getPageMapFile(tmp);
+        Files.deleteIfExists(tmp.toPath());
+        Files.deleteIfExists(tmpMap.toPath());
+        if (compressed) {
+            CompressedPageFile out = new CompressedPageFile(tmp);
+            try {
+                for (int i = 0; i < n; i++) {
+                    out.writePage(i, readPageData(i, pageSize));
+                }
+                out.force();
+            } finally {
+                out.close();
+            }
+        } else {
+            try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+                for (int i = 0; i < n; i++) {
+                    ByteBuffer buf = ByteBuffer.wrap(readPageData(i, pageSize));
+                    while (buf.hasRemaining()) {
+                        out.write(buf, (long) i * pageSize + buf.position());
+                    }
+                }
+                out.force(false);
+            }
+        }
+
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        segments.clear();
+        if (compressedPages != null) {
+            compressedPages.close();
+            compressedPages = null;
+        }
+        File map = CompressedPageFile.getPageMapFile(file);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (compressed) {
+            Files.move(tmpMap.toPath(), map.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(map.toPath());
+        }
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return true if the pages of this table are stored compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the page store of a compressed table, opening it on first use,
+     * or null if this table is not compressed.
+     */
+    private CompressedPageFile getCompressedPages() throws IOException {
+        if (!compressed) {
+            return null;
+        }
+        synchronized (this) {
+            if (compressedPages == null) {
+                compressedPages = new CompressedPageFile(file);
+            }
+            return compressedPages;
+        }
+    }
+
+    /**
+     * Enables or disables page checksums for this table. While enabled, every
+     * page written is stamped with a checksum (see PageChecksums) and every
+     * page read is verified against it, so that a torn or corrupted page write
+     * makes readPage fail instead of returning bad tuples. Enabling checksums
+     * stamps the pages already in the file, and disabling them deletes the
+     * checksum file. The table must not be in use while this runs.
+     *
+     * @param checksummed true to checksum the pages of this table
+     */
+    public synchronized void setChecksummed(boolean checksummed) throws IOException {
+        if (checksummed == this.checksummed) {
+            return;
+        }
+        if (checksummed) {
+            int pageSize = BufferPool.getPageSize();
+            PageChecksums sums = new PageChecksums(file, this::forcePages);
+            for (int i = 0; i < numPages(); i++) {
+                sums.stamp(i, readPageData(i, pageSize));
+            }
+            sums.force();
+            checksums = sums;
+        } else {
+            if (checksums != null) {
+                checksums.close();
+                checksums = null;
+            }
+            Files.deleteIfExists(PageChecksums.getChecksumFile(file).toPath());
+        }
+        this.checksummed = checksummed;
+    }
+
+    /**
+     * @return true if the pages of this table are checksummed
+     */
+    public boolean isChecksummed() {
+        return checksummed;
+    }
+
+    /**
+     * Forces the pages written to this table to disk.
+     */
+    private void forcePages() throws IOException {
+        CompressedPageFile pages = getCompressedPages();
+        if (pages != null) {
+            pages.force();
+        } else {
+            getChannel().force(false);
+        }
+    }
+
+    /**
+     * Returns the checksums of this table, opening them on first use, or null
+     * if this table is not checksummed.
+     */
+    private PageChecksums getChecksums() throws IOException {
+        if (!checksummed) {
+            return null;
+        }
+        synchronized (this) {
+            if (checksums == null) {
+                checksums = new PageChecksums(file, this::forcePages);
+            }
+            return checksums;
+        }
+    }
+
+    /**
+     * Returns the number of bytes readPage has read from disk for this table,
+     * which for a compressed table is the size of the compressed images.
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Returns the mapping holding the given page, mapping (or re-mapping a
+     * segment that has since grown) as needed, or null if the page lies beyond
+     * the end of the file.
+     */
+    private synchronized MappedByteBuffer getSegment(int pageNumber, int pageSize) throws IOException {
+        if (segmentPageSize != pageSize) {
+            segments.clear();
+            segmentPageSize = pageSize;
+        }
+        int pagesPerSegment = Math.max(1, MAP_SEGMENT_SIZE / pageSize);
+        int index = pageNumber / pagesPerSegment;
+        long segmentStart = (long) index * pagesPerSegment * pageSize;
+        long pageEnd = ((long) pageNumber + 1) * pageSize;
+        while (segments.size() <= index) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null || segmentStart + segment.capacity() < pageEnd) {
+            FileChannel fc = getChannel();
+            long length = Math.min((long) pagesPerSegment * pageSize, fc.size() - segmentStart);
+            if (segmentStart + length < pageEnd) {
+                return null;
+            }
+            segment = fc.map(FileChannel.MapMode.READ_ONLY, segmentStart, length);
+            segments.set(index, segment);
+        }
+        return segment;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        FileInputStream fileInputStream = null;
-        HeapPage heapPage = null;
-        int size = BufferPool.getPageSize();
-        byte[] buf = new byte[size];
         try {
-
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-            randomAccessFile.seek((long) pid.getPageNumber() * size);
-            if (randomAccessFile.read(buf) == -1) {
+            byte[] data = readPageData(pid.getPageNumber(), BufferPool.getPageSize());
+            if (data == null) {
                 return null;
             }
-
-            heapPage = new HeapPage((HeapPageId) pid, buf);
-
-            randomAccessFile.close();
-        } catch (Exception e) {
+            PageChecksums sums = getChecksums();
+            if (sums != null && !sums.verify(pid.getPageNumber(), data)) {
+                PageChecksums.mismatch(file, pid.getPageNumber());
+            }
+            return noteFreeSpace(new HeapPage((HeapPageId) pid, data));
+        } catch (IOException e) {
             e.printStackTrace();
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the image of one page from disk, inflating it if this table is
+     * compressed.
+     *
+     * @return the page image, or null if the page lies beyond the end of the file
+     */
+    private byte[] readPageData(int pageNumber, int size) throws IOException {
+        CompressedPageFile pages = getCompressedPages();
+        if (pages != null) {
+            byte[] data = pages.readPage(pageNumber, size);
+            if (data != null) {
+                bytesRead.addAndGet(pages.storedLength(pageNumber));
+            }
+            return data;
         }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        if (memoryMapped) {
+            mappingLock.readLock().lock();
+            try {
+                MappedByteBuffer segment = getSegment(pageNumber, size);
+                if (segment != null) {
+                    ByteBuffer view = segment.duplicate();
+                    int pagesPerSegment = Math.max(1, MAP_SEGMENT_SIZE / size);
+                    view.position((pageNumber % pagesPerSegment) * size);
+                    view.get(buf.array(), 0, size);
+                    bytesRead.addAndGet(size);
+                    return buf.array();
+                }
+            } finally {
+                mappingLock.readLock().unlock();
+            }
+        }
+        FileChannel fc = getChannel();
+        long offset = (long) pageNumber * size;
+        while (buf.hasRemaining()) {
+            int n = fc.read(buf, offset + buf.position());
+            if (n == -1) {
+                break;
+            }
+        }
+        if (buf.position() == 0) {
+            return null;
+        }
+        bytesRead.addAndGet(buf.position());
+        return buf.array();
+    }
 
-        return heapPage;
+    /**
+     * Stamps the checksums of the given pages and forces them once, so that
+     * writing the pages afterwards forces nothing more.
+     */
+    public void prepareWrites(List<Page> pages) throws IOException {
+        PageChecksums sums = getChecksums();
+        if (sums == null) {
+            return;
+        }
+        for (Page page : pages) {
+            sums.stamp(page.getId().getPageNumber(), page.getPageData());
+        }
+        sums.force();
     }
 
     // see DbFile.java for javadocs
@@ -177,25 +610,147 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         HeapPageId id = (HeapPageId) page.getId();
-        int size = BufferPool.getPageSize();
-        int pageNumber = id.getPageNumber();
         byte[] data = page.getPageData();
+        PageChecksums sums = getChecksums();
+        if (sums != null) {
+            sums.stamp(id.getPageNumber(), data);
+            sums.force();
+        }
+        CompressedPageFile pages = getCompressedPages();
+        if (pages != null) {
+            pages.writePage(id.getPageNumber(), data);
+            noteFreeSpace((HeapPage) page);
+            return;
+        }
+        int size = BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        FileChannel fc = getChannel();
+        long offset = (long) id.getPageNumber() * size;
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+        noteFreeSpace((HeapPage) page);
+    }
+
+    /**
+     * Marks the page in the free-space map if it has an empty slot. Pages that
+     * are full are left alone: only insertTuple, which holds a lock on the page,
+     * unmarks them.
+     */
+    private HeapPage noteFreeSpace(HeapPage page) {
+        if (page.getNumEmptySlots() == 0) {
+            return page;
+        }
+        int pageNumber = page.getId().getPageNumber();
+        synchronized (this) {
+            if (freePages != null) {
+                freePages.set(pageNumber);
+            } else if (notedFree != null) {
+                notedFree.set(pageNumber);
+                notedFull.clear(pageNumber);
+            }
+            pageRoom.computeIfPresent(pageNumber, (k, room) -> page.getRoom());
+        }
+        return page;
+    }
+
+    /**
+     * Returns the number of the first page at or after from that may have an
+     * empty slot, or -1 if there is none, building the free-space map first if
+     * needed. While another thread builds the map every page is a candidate.
+     */
+    private int nextFreePage(int from) {
+        synchronized (this) {
+            if (freePages != null) {
+                return freePages.nextSetBit(from);
+            }
+            if (notedFree != null) {
+                return from;
+            }
+            notedFree = new BitSet();
+            notedFull = new BitSet();
+        }
+        buildFreePages();
+        synchronized (this) {
+            return freePages.nextSetBit(from);
+        }
+    }
+
+    /**
+     * Builds the free-space map by one pass over the file. The pass does not
+     * hold this file's monitor, so that writePage, deleteTuple and other
+     * inserters go on meanwhile; the pages they mark and unmark are merged
+     * into the result at the end. A page the BufferPool holds is judged by
+     * the cached copy, which may be newer than the one on disk.
+     */
+    private void buildFreePages() {
+        BitSet free = new BitSet();
+        PageCache cache = Database.getBufferPool().getPageCache();
+        boolean built = false;
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-            randomAccessFile.seek((long) pageNumber * size);
-            randomAccessFile.write(data);
-            randomAccessFile.close();
+            for (int i = 0; i < numPages(); i++) {
+                HeapPageId pid = new HeapPageId(getId(), i);
+                Page cached = cache.peek(pid);
+                HeapPage page = (HeapPage) (cached != null ? cached : readPage(pid));
+                if (page != null && page.getNumEmptySlots() > 0) {
+                    free.set(i);
+                }
+            }
+            built = true;
+        } finally {
+            // a failed pass leaves the map to be built by the next insert
+            synchronized (this) {
+                if (built) {
+                    free.andNot(notedFull);
+                    free.or(notedFree);
+                    freePages = free;
+                }
+                notedFree = null;
+                notedFull = null;
+            }
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private synchronized void markPageFull(int pageNumber) {
+        pageRoom.remove(pageNumber);
+        if (freePages != null) {
+            freePages.clear(pageNumber);
+        } else if (notedFree != null) {
+            notedFull.set(pageNumber);
+            notedFree.clear(pageNumber);
         }
     }
 
+    /**
+     * Notes that the given page, which has an empty slot, only has room for
+     * records of up to room bytes.
+     */
+    private synchronized void notePageRoom(int pageNumber, int room) {
+        pageRoom.put(pageNumber, room);
+    }
+
+    /**
+     * @return false if the given page is known to lack room for a record of
+     *         the given length
+     */
+    private synchronized boolean mayHaveRoom(int pageNumber, int recordLength) {
+        Integer room = pageRoom.get(pageNumber);
+        return room == null || recordLength <= room;
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
+        try {
+            CompressedPageFile pages = getCompressedPages();
+            if (pages != null) {
+                return pages.numPages();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         return (int) file.length() / BufferPool.getPageSize();
     }
 
@@ -209,15 +764,23 @@ public class HeapFile implements DbFile {
         List<Page> res = new ArrayList<>();
         HeapPage page;
         HeapPageId heapPageId;
-        int i;
-        for (i = 0; i < numPages(); i++) {
+        int recordLength = isSlotted() ? HeapPage.getRecordLength(tupleDesc, t) : 0;
+        for (int i = nextFreePage(0); i >= 0 && i < numPages(); i = nextFreePage(i + 1)) {
+            if (!mayHaveRoom(i, recordLength)) {
+                continue;
+            }
             heapPageId = new HeapPageId(getId(), i);
             page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY);
             if (page == null) {
                 Database.getBufferPool().getLockManager().releaseLock(tid, heapPageId);
                 continue;
             }
-            if (page.getNumEmptySlots() == 0) {
+            if (!page.hasRoomFor(t)) {
+                if (page.getNumEmptySlots() == 0) {
+                    markPageFull(i);
+                } else {
+                    notePageRoom(i, page.getRoom());
+                }
                 Database.getBufferPool().getLockManager().releaseLock(tid, heapPageId);
                 continue;
             }
@@ -226,7 +789,7 @@ public class HeapFile implements DbFile {
             res.add(page);
             return res;
         }
-        heapPageId = new HeapPageId(getId(), i);
+        heapPageId = new HeapPageId(getId(), numPages());
         page = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
         //-------注：这两句话不能颠倒位置，现在操作系统内存中插入tuple然后写入磁盘，
         // 如果先写入磁盘在插入tuple则更新没写进去磁盘
@@ -239,6 +802,207 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    /**
+     * Appends the given tuples to the end of this file in a transaction of
+     * its own; see bulkLoad(TransactionId, Iterator).
+     *
+     * @param tuples the tuples to load; each must have this file's TupleDesc
+     * @return the number of pages appended
+     * @throws DbException if a tuple does not match this file's TupleDesc
+     * @throws TransactionAbortedException if the table could not be locked
+     */
+    public int bulkLoad(Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        try {
+            return bulkLoad(tid, tuples);
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * Appends the given tuples to the end of this file on behalf of tid,
+     * packed into full pages in the format described in the HeapPage
+     * constructor. tid first locks the whole table exclusively, so no other
+     * transaction sees the pages until it completes. Pages are then encoded
+     * straight into a buffer and written BULK_LOAD_BATCH_PAGES at a time,
+     * bypassing the BufferPool and the log; instead of being logged, the
+     * appended pages and their checksums are forced to disk before this
+     * method returns, and so before tid can commit. If any tuple cannot be
+     * loaded the file and its checksums are cut back to their original
+     * length, so either every tuple is appended or none is. The pages of a
+     * load that succeeded stay in the file even if tid aborts.
+     *
+     * @param tid    the transaction loading the tuples
+     * @param tuples the tuples to load; each must have this file's TupleDesc
+     * @return the number of pages appended
+     * @throws DbException if a tuple does not match this file's TupleDesc
+     * @throws TransactionAbortedException if the table could not be locked
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().lockTable(tid, getId(), LockMode.X);
+        int pageSize = BufferPool.getPageSize();
+        boolean slotted = isSlotted();
+        boolean columnar = isColumnar();
+        int numSlots = (pageSize * 8) / (tupleDesc.getSize() * 8 + 1);
+        int headerSize = (int) Math.ceil(numSlots / 8.0);
+
+        CompressedPageFile store = getCompressedPages();
+        long compressedLength = store == null ? 0 : store.dataLength();
+        FileChannel fc = store == null ? getChannel() : null;
+        int firstPage = numPages();
+        long start = (long) firstPage * pageSize;
+        long offset = start;
+        ByteBuffer batch = ByteBuffer.allocate(BULK_LOAD_BATCH_PAGES * pageSize);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(body);
+        byte[] header = new byte[headerSize];
+        // records of the slotted page being filled
+        List<byte[]> records = new ArrayList<>();
+        int recordBytes = 0;
+        int pages = 0;
+        int slot = 0;
+        try {
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                if (!tupleDesc.equals(t.getTupleDesc())) {
+                    throw new DbException("tuple does not match the TupleDesc of this file");
+                }
+                if (slotted) {
+                    for (int j = 0; j < tupleDesc.numFields(); j++) {
+                        tupleDesc.getFieldType(j).writeCompact(t.getField(j), dos);
+                    }
+                    byte[] record = body.toByteArray();
+                    body.reset();
+                    if (!HeapPage.slottedPageFits(records.size() + 1, recordBytes + record.length)) {
+                        batch.put(HeapPage.createSlottedPageData(records));
+                        pages++;
+                        records.clear();
+                        recordBytes = 0;
+                    }
+                    records.add(record);
+                    recordBytes += record.length;
+                    slot = records.size();
+                } else {
+                    for (int j = 0; j < tupleDesc.numFields(); j++) {
+                        t.getField(j).serialize(dos);
+                    }
+                    header[slot / 8] |= (byte) (1 << (slot % 8));
+                    if (++slot == numSlots) {
+                        appendPage(batch, header, body, columnar ? numSlots : 0);
+                        pages++;
+                        slot = 0;
+                    }
+                }
+                if (!batch.hasRemaining()) {
+                    offset = writeBatch(batch, offset);
+                }
+            }
+            if (slot > 0) {
+                if (slotted) {
+                    batch.put(HeapPage.createSlottedPageData(records));
+                } else {
+                    appendPage(batch, header, body, columnar ? numSlots : 0);
+                }
+                pages++;
+            }
+            writeBatch(batch, offset);
+            if (store != null) {
+                store.force();
+            } else {
+                fc.force(false);
+            }
+        } catch (DbException | IOException | RuntimeException e) {
+            PageChecksums sums = getChecksums();
+            if (sums != null) {
+                sums.truncate(firstPage);
+            }
+            if (store != null) {
+                store.truncate(firstPage, compressedLength);
+            } else {
+                // drop mappings of the pages cut off, which scans would
+                // otherwise read past the end of the file, once no page is
+                // being copied out of them
+                mappingLock.writeLock().lock();
+                try {
+                    synchronized (this) {
+                        fc.truncate(start);
+                        segments.clear();
+                    }
+                } finally {
+                    mappingLock.writeLock().unlock();
+                }
+            }
+            throw e;
+        }
+
+        if (slot > 0) {
+            synchronized (this) {
+                if (freePages != null) {
+                    freePages.set(firstPage + pages - 1);
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Copies one page image made of the given header and tuple bytes, padded
+     * with zeroes, into the batch, and clears both for the next page. If
+     * columnarSlots is not 0 the tuples are then rearranged into the columnar
+     * layout of a page with that many slots.
+     */
+    private void appendPage(ByteBuffer batch, byte[] header, ByteArrayOutputStream body, int columnarSlots) {
+        int start = batch.position();
+        int end = start + BufferPool.getPageSize();
+        batch.put(header);
+        batch.put(body.toByteArray());
+        Arrays.fill(batch.array(), batch.position(), end, (byte) 0);
+        if (columnarSlots > 0) {
+            HeapPage.rowsToColumns(batch.array(), start + header.length, columnarSlots, tupleDesc);
+        }
+        batch.position(end);
+        Arrays.fill(header, (byte) 0);
+        body.reset();
+    }
+
+    /**
+     * Writes the pages in the batch at the given offset and empties it. The
+     * pages of a compressed table are compressed and appended one at a time.
+     *
+     * @return the offset just past the written pages
+     */
+    private long writeBatch(ByteBuffer batch, long offset) throws IOException {
+        batch.flip();
+        int pageSize = BufferPool.getPageSize();
+        PageChecksums sums = getChecksums();
+        if (sums != null) {
+            for (int pos = 0; pos < batch.limit(); pos += pageSize) {
+                sums.stamp((int) ((offset + pos) / pageSize), batch.array(), pos, pageSize);
+            }
+            sums.force();
+        }
+        CompressedPageFile pages = getCompressedPages();
+        if (pages != null) {
+            byte[] page = new byte[pageSize];
+            while (batch.hasRemaining()) {
+                int pageNumber = (int) ((offset + batch.position()) / pageSize);
+                batch.get(page);
+                pages.writePage(pageNumber, page);
+            }
+        } else {
+            FileChannel fc = getChannel();
+            while (batch.hasRemaining()) {
+                fc.write(batch, offset + batch.position());
+            }
+        }
+        long end = offset + batch.limit();
+        batch.clear();
+        return end;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -250,6 +1014,7 @@ public class HeapFile implements DbFile {
             throw new DbException("hh");
         }
         page.deleteTuple(t);
+        noteFreeSpace(page);
         res.add(page);
         return res;
 
@@ -4,8 +4,16 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -93,6 +101,12 @@ public class HeapFileEncoder {
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
 
+      if (!isFixedLength(typeAr, numFields)) {
+          // variable-length records go on slotted pages
+          convertParallel(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, 1);
+          return;
+      }
+
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
@@ -224,4 +238,206 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Number of pages of records parsed and encoded by each task of convertParallel. */
+  private static final int PAGES_PER_CHUNK = 64;
+
+  /**
+   * Same as {@link #convertParallel(File, File, int, int, Type[], char, int)},
+   * using one worker per available processor.
+   */
+  public static void convertParallel(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      convertParallel(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Convert the specified input text file into a binary page file, in the
+   * same format as {@link #convert(File, File, int, int, Type[], char)}. <br>
+   *
+   * The input is read as a stream of lines and split into chunks of
+   * PAGES_PER_CHUNK pages worth of records. Chunks are parsed and encoded on a
+   * fork-join pool and written to the output in input order; at most two
+   * chunks per worker are held in memory at any time, so memory use does not
+   * depend on the size of the input. Tables with variable-length fields get
+   * slotted pages, and since each chunk is packed on its own the last page of
+   * every chunk may be partly filled. Unlike convert, a malformed line (wrong
+   * number of fields or a bad integer) aborts the conversion.
+   *
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param npagebytes The number of bytes per page in the output file
+   * @param numFields the number of fields in each input line/output tuple
+   * @param typeAr the type of each field
+   * @param fieldSeparator the character separating fields on a line
+   * @param parallelism the number of worker threads to encode pages with
+   * @throws IOException if the input/output file can't be opened or a
+   *   malformed input line is encountered
+   */
+  public static void convertParallel(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int parallelism)
+      throws IOException {
+      int size = 0;
+      for (int i = 0; i < numFields; i++) {
+          size += typeAr[i].getLen();
+      }
+      final int nrecbytes = size;
+      int nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);
+      int chunkLines = nrecords * PAGES_PER_CHUNK;
+
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      Deque<Future<byte[]>> pending = new ArrayDeque<>();
+      try (BufferedReader br = new BufferedReader(new FileReader(inFile));
+           FileChannel out = new FileOutputStream(outFile).getChannel()) {
+          long npages = 0;
+          List<String> chunk = new ArrayList<>(chunkLines);
+          String line;
+          while (true) {
+              line = br.readLine();
+              if (line != null) {
+                  if (line.isEmpty()) {
+                      continue;
+                  }
+                  chunk.add(line);
+                  if (chunk.size() < chunkLines) {
+                      continue;
+                  }
+              }
+              if (!chunk.isEmpty() || line == null && npages == 0 && pending.isEmpty()) {
+                  final List<String> lines = chunk;
+                  pending.add(pool.submit(() -> encodeChunk(lines, npagebytes, nrecbytes,
+                          numFields, typeAr, fieldSeparator, nrecords)));
+                  chunk = new ArrayList<>(chunkLines);
+              }
+              while (!pending.isEmpty() && (line == null || pending.size() >= 2 * parallelism)) {
+                  byte[] pages = waitFor(pending.poll());
+                  ByteBuffer buf = ByteBuffer.wrap(pages);
+                  while (buf.hasRemaining()) {
+                      out.write(buf);
+                  }
+                  npages += pages.length / npagebytes;
+              }
+              if (line == null) {
+                  break;
+              }
+          }
+      } finally {
+          for (Future<byte[]> f : pending) {
+              f.cancel(true);
+          }
+          pool.shutdownNow();
+      }
+  }
+
+  private static byte[] waitFor(Future<byte[]> f) throws IOException {
+      try {
+          return f.get();
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+              throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+      }
+  }
+
+  /**
+   * Encodes the given lines into consecutive pages of nrecords records each;
+   * the last page may be partly filled. No lines produce a single empty page.
+   * If any type is variable-length the pages use the slotted layout described
+   * in the HeapPage constructor, each holding as many records as fit.
+   */
+  private static byte[] encodeChunk(List<String> lines, int npagebytes, int nrecbytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int nrecords)
+      throws IOException {
+      ByteArrayOutputStream recordBAOS = new ByteArrayOutputStream(nrecbytes);
+      DataOutputStream recordStream = new DataOutputStream(recordBAOS);
+      if (!isFixedLength(typeAr, numFields)) {
+          ByteArrayOutputStream pages = new ByteArrayOutputStream(npagebytes);
+          List<byte[]> records = new ArrayList<>();
+          int recordBytes = 0;
+          for (String line : lines) {
+              encodeLine(line, numFields, typeAr, fieldSeparator, recordStream);
+              byte[] record = recordBAOS.toByteArray();
+              recordBAOS.reset();
+              if (!HeapPage.slottedPageFits(records.size() + 1, recordBytes + record.length)) {
+                  pages.write(HeapPage.createSlottedPageData(records));
+                  records.clear();
+                  recordBytes = 0;
+              }
+              records.add(record);
+              recordBytes += record.length;
+          }
+          if (!records.isEmpty() || pages.size() == 0) {
+              pages.write(HeapPage.createSlottedPageData(records));
+          }
+          return pages.toByteArray();
+      }
+
+      int npages = Math.max(1, (lines.size() + nrecords - 1) / nrecords);
+      int nheaderbytes = (nrecords + 7) / 8;
+      byte[] buf = new byte[npages * npagebytes];
+      for (int r = 0; r < lines.size(); r++) {
+          int page = r / nrecords;
+          int slot = r % nrecords;
+          int pageStart = page * npagebytes;
+          buf[pageStart + slot / 8] |= (byte) (1 << (slot % 8));
+
+          encodeLine(lines.get(r), numFields, typeAr, fieldSeparator, recordStream);
+          recordStream.flush();
+          System.arraycopy(recordBAOS.toByteArray(), 0, buf, pageStart + nheaderbytes + slot * nrecbytes, nrecbytes);
+          recordBAOS.reset();
+      }
+      return buf;
+  }
+
+  private static boolean isFixedLength(Type[] typeAr, int numFields) {
+      for (int i = 0; i < numFields; i++) {
+          if (!typeAr[i].isFixedLength()) {
+              return false;
+          }
+      }
+      return true;
+  }
+
+  /**
+   * Writes the record on the given line to out, in the compact format of
+   * {@link Type#writeCompact}.
+   */
+  private static void encodeLine(String line, int numFields, Type[] typeAr, char fieldSeparator,
+                 DataOutputStream out) throws IOException {
+      int fieldNo = 0;
+      int start = 0;
+      while (true) {
+          int end = line.indexOf(fieldSeparator, start);
+          String s = end < 0 ? line.substring(start) : line.substring(start, end);
+          if (fieldNo >= numFields) {
+              throw new IOException("more than " + numFields + " fields on line: " + line);
+          }
+          if (typeAr[fieldNo] == Type.INT_TYPE) {
+              try {
+                  out.writeInt(Integer.parseInt(s.trim()));
+              } catch (NumberFormatException e) {
+                  throw new IOException("bad integer " + s + " on line: " + line);
+              }
+          } else {
+              s = s.trim();
+              if (s.length() > Type.STRING_LEN) {
+                  s = s.substring(0, Type.STRING_LEN);
+              }
+              typeAr[fieldNo].writeCompact(new StringField(s, Type.STRING_LEN, typeAr[fieldNo]), out);
+          }
+          fieldNo++;
+          if (end < 0) {
+              break;
+          }
+          start = end + 1;
+      }
+      if (fieldNo < numFields) {
+          throw new IOException("fewer than " + numFields + " fields on line: " + line);
+      }
+  }
 }
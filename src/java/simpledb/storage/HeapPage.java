@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
@@ -18,14 +19,56 @@ import java.io.*;
  */
 public class HeapPage implements Page {
 
+    /**
+     * Format version written in the first byte of every slotted page. A page
+     * whose first byte is 0 has never been written and holds no tuples.
+     */
+    static final int SLOTTED_FORMAT_VERSION = 1;
+    /**
+     * Size of the header of a slotted page: the format version byte and the
+     * number of slot directory entries, as an unsigned short.
+     */
+    static final int SLOTTED_HEADER_SIZE = 3;
+    /**
+     * Size of a slot directory entry of a slotted page: the offset and the
+     * length of the record in the slot, as unsigned shorts. An empty slot has
+     * length 0.
+     */
+    static final int SLOT_ENTRY_SIZE = 4;
+
     final HeapPageId pid;
     final TupleDesc td;
+    /**
+     * True if this page uses the slotted layout rather than the header bitmap;
+     * see {@link HeapFile#isSlotted()}.
+     */
+    final boolean slotted;
+    /**
+     * True if this page stores its tuple slots one field after another rather
+     * than row by row; see {@link HeapFile#isColumnar()}.
+     */
+    final boolean columnar;
+    // header bitmap; null on a slotted page
     final byte[] header;
     final Tuple[] tuples;
     final int numSlots;
+    // slotted pages only: offset in data of each slot's record while the
+    // slot still holds the tuple it was read with, and the record's length
+    final int[] recordOffsets;
+    final int[] recordLengths;
+    private int usedBytes;
+    /**
+     * The bytes this page was created from. They are never modified: a used
+     * slot whose entry in tuples is still null holds the tuple stored here,
+     * which is decoded on first access.
+     */
+    final byte[] data;
+    // offset of each field within a tuple slot
+    final int[] fieldOffsets;
     byte[] oldData;
     private final Byte oldDataLock = (byte) 0;
     private Boolean dirty;
+    private volatile long lsn = -1;
     private TransactionId transactionId;
 
     /**
@@ -40,7 +83,29 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * Tables with variable-length fields, and tables that ask for it with
+     * {@link HeapFile#setSlotted}, use a slotted layout instead: a format
+     * version byte, an unsigned short holding the number of slot directory
+     * entries, the directory itself (the offset and length of each slot's
+     * record, as unsigned shorts, with length 0 marking an empty slot) and the
+     * records, written in compact format and packed against the end of the
+     * page.
+     * Records are repacked whenever the page is written out, so the space of
+     * deleted tuples is reclaimed without moving any tuple to another slot.
+     * <p>
+     * Tables that ask for it with {@link HeapFile#setColumnar} use the same
+     * header and number of slots as the bitmap layout, but the slots are
+     * stored column by column (PAX): the header is followed by one mini-page
+     * per field holding that field of every slot, so field j of slot i is at
+     * header size + numSlots * (offset of field j in a tuple) + i * (size of
+     * field j). A scan that reads a few fields of a wide table then only
+     * touches the mini-pages of those fields.
+     * <p>
+     * Only the header is decoded here; tuples (and their fields) are decoded
+     * from data when they are first accessed, so the array must not be
+     * modified after it is passed in.
      *
+     * @throws IOException if a slotted page has an unknown format version
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -48,30 +113,42 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.slotted = file instanceof HeapFile ? ((HeapFile) file).isSlotted() : !td.isFixedLength();
+        this.columnar = file instanceof HeapFile && ((HeapFile) file).isColumnar();
         this.numSlots = getNumTuples();
         this.dirty = false;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
+        this.data = data;
         tuples = new Tuple[numSlots];
-        try {
-
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-
-        } catch (NoSuchElementException e) {
 
-            e.printStackTrace();
+        if (slotted) {
+            header = null;
+            recordOffsets = new int[numSlots];
+            recordLengths = new int[numSlots];
+            if (data[0] != 0 && data[0] != SLOTTED_FORMAT_VERSION) {
+                throw new IOException("unsupported heap page format version " + data[0]);
+            }
+            int entries = readShort(data, 1);
+            for (int i = 0; i < entries; i++) {
+                recordOffsets[i] = readShort(data, SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE);
+                recordLengths[i] = readShort(data, SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE + 2);
+                usedBytes += recordLengths[i];
+            }
+        } else {
+            // allocate and read the header slots of this page
+            header = Arrays.copyOf(data, getHeaderSize());
+            recordOffsets = null;
+            recordLengths = null;
         }
 
-        dis.close();
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
 
-        setBeforeImage();
+        // the page is unmodified, so its before image is the data it was read from
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
     }
 
     /**
@@ -81,6 +158,9 @@ public class HeapPage implements Page {
      */
     private int getNumTuples() {
         // some code goes here
+        if (slotted) {
+            return (BufferPool.getPageSize() - SLOTTED_HEADER_SIZE) / (getMinRecordLength() + SLOT_ENTRY_SIZE);
+        }
         return (int) Math.floor((BufferPool.getPageSize() * 8.0) / (td.getSize() * 8.0 + 1.0));
 
     }
@@ -97,6 +177,99 @@ public class HeapPage implements Page {
 
     }
 
+    /**
+     * Returns the smallest number of bytes a record of this table can take
+     * on a slotted page.
+     */
+    private int getMinRecordLength() {
+        int len = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            len += type.isFixedLength() ? type.getLen() : 4;
+        }
+        return len;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Returns the number of slot directory entries a slotted page needs:
+     * one past its last used slot.
+     */
+    private int getNumEntries() {
+        for (int i = numSlots - 1; i >= 0; i--) {
+            if (recordLengths[i] > 0) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of free bytes of a slotted page with the given number
+     * of slot directory entries.
+     */
+    private int getFreeBytes(int entries) {
+        return BufferPool.getPageSize() - SLOTTED_HEADER_SIZE - entries * SLOT_ENTRY_SIZE - usedBytes;
+    }
+
+    /**
+     * Returns the number of bytes the given tuple takes on a slotted page.
+     */
+    private int getRecordLength(Tuple t) {
+        return getRecordLength(td, t);
+    }
+
+    /**
+     * Returns the number of bytes the given tuple, of the given TupleDesc,
+     * takes on a slotted page.
+     */
+    static int getRecordLength(TupleDesc td, Tuple t) {
+        int len = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            len += td.getFieldType(j).getCompactLen(t.getField(j));
+        }
+        return len;
+    }
+
+    /**
+     * Generates the data of a slotted page holding the given records, in
+     * compact format, in slots numbered from 0; a null record leaves its slot
+     * empty. The caller must make sure the records fit on one page.
+     */
+    static byte[] createSlottedPageData(List<byte[]> records) {
+        byte[] page = new byte[BufferPool.getPageSize()];
+        page[0] = SLOTTED_FORMAT_VERSION;
+        writeShort(page, 1, records.size());
+        int end = page.length;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] record = records.get(i);
+            if (record == null) {
+                continue;
+            }
+            end -= record.length;
+            System.arraycopy(record, 0, page, end, record.length);
+            writeShort(page, SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE, end);
+            writeShort(page, SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE + 2, record.length);
+        }
+        return page;
+    }
+
+    /**
+     * Returns true if a slotted page can hold the given number of records
+     * taking the given number of bytes in total.
+     */
+    static boolean slottedPageFits(int numRecords, int recordBytes) {
+        return SLOTTED_HEADER_SIZE + numRecords * SLOT_ENTRY_SIZE + recordBytes <= BufferPool.getPageSize();
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
@@ -131,35 +304,75 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the offset in data of the given slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private int slotOffset(int slotId) {
+        if (slotted) {
+            return recordOffsets[slotId];
+        }
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Returns the offset in data of the given field of the given slot, for
+     * pages in the bitmap or columnar layout.
+     */
+    private int fieldOffset(int slotId, int fieldId) {
+        if (columnar) {
+            return header.length + numSlots * fieldOffsets[fieldId] + slotId * td.getFieldType(fieldId).getLen();
+        }
+        return slotOffset(slotId) + fieldOffsets[fieldId];
+    }
+
+    /**
+     * Rearranges the tuple slots of a page image in the bitmap layout, which
+     * start at the given offset, into the column by column order of the
+     * columnar layout.
+     */
+    static void rowsToColumns(byte[] page, int offset, int numSlots, TupleDesc td) {
+        int tupleSize = td.getSize();
+        byte[] rows = Arrays.copyOfRange(page, offset, offset + numSlots * tupleSize);
+        int fieldOffset = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            int dest = offset + numSlots * fieldOffset;
+            for (int i = 0; i < numSlots; i++) {
+                System.arraycopy(rows, i * tupleSize + fieldOffset, page, dest + i * len, len);
             }
-            return null;
+            fieldOffset += len;
         }
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    }
+
+    /**
+     * Decode a single field of the tuple stored in the given slot of the data
+     * this page was created from.
+     */
+    Field decodeField(int slotId, int fieldId) {
+        if (slotted) {
+            int offset = recordOffsets[slotId];
+            for (int j = 0; j < fieldId; j++) {
+                offset += td.getFieldType(j).getCompactLen(data, offset);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return td.getFieldType(fieldId).parse(data, offset);
+        }
+        return td.getFieldType(fieldId).parse(data, fieldOffset(slotId, fieldId));
+    }
+
+    /**
+     * Returns the tuple in the given slot, or null if the slot is empty. Tuples
+     * still stored in data are wrapped on first access; their fields are only
+     * decoded when read.
+     */
+    private Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId)) {
+            return null;
         }
-        return t;
+        if (tuples[slotId] == null) {
+            Tuple t = new Tuple(td, this, slotId);
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
+        }
+        return tuples[slotId];
     }
 
     /**
@@ -174,6 +387,9 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
+        if (slotted) {
+            return getSlottedPageData();
+        }
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -204,6 +420,22 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // slot still holding the tuple it was read with
+            if (tuples[i] == null) {
+                try {
+                    if (columnar) {
+                        for (int j = 0; j < td.numFields(); j++) {
+                            dos.write(data, fieldOffset(i, j), td.getFieldType(j).getLen());
+                        }
+                    } else {
+                        dos.write(data, slotOffset(i), td.getSize());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j = 0; j < td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -231,7 +463,38 @@ public class HeapPage implements Page {
             e.printStackTrace();
         }
 
-        return baos.toByteArray();
+        // the slots were written row by row
+        byte[] page = baos.toByteArray();
+        if (columnar) {
+            rowsToColumns(page, header.length, numSlots, td);
+        }
+        return page;
+    }
+
+    private byte[] getSlottedPageData() {
+        List<byte[]> records = new ArrayList<>();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = 0; i < getNumEntries(); i++) {
+            if (!isSlotUsed(i)) {
+                records.add(null);
+            } else if (tuples[i] == null) {
+                // slot still holding the tuple it was read with
+                records.add(Arrays.copyOfRange(data, recordOffsets[i], recordOffsets[i] + recordLengths[i]));
+            } else {
+                baos.reset();
+                try {
+                    for (int j = 0; j < td.numFields(); j++) {
+                        td.getFieldType(j).writeCompact(tuples[i].getField(j), dos);
+                    }
+                    dos.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                records.add(baos.toByteArray());
+            }
+        }
+        return createSlottedPageData(records);
     }
 
     /**
@@ -239,7 +502,7 @@ public class HeapPage implements Page {
      * HeapPage.
      * Used to add new, empty pages to the file. Passing the results of
      * this method to the HeapPage constructor will create a HeapPage with
-     * no valid tuples in it.
+     * no valid tuples in it, in either layout.
      *
      * @return The returned ByteArray.
      */
@@ -260,22 +523,42 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
 
-        for (int i = 0; i < getNumTuples(); i++) {
-            if (tuples[i] == null) {
-                continue;
-            }
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tuple is not on this page");
+        }
+        int i = rid.getTupleNumber();
+        if (i < 0 || i >= numSlots || !isSlotUsed(i)) {
+            throw new DbException("tuple slot is already empty");
+        }
+        tuples[i] = null;
+        markSlotUsed(i, false);
+    }
 
-            if (tuples[i].equals(t)) {
+    /**
+     * Returns true if the given tuple can be added to this page. On a slotted
+     * page this depends on the size of the tuple.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        if (!slotted) {
+            return getNumEmptySlots() > 0;
+        }
+        return getRecordLength(t) <= getRoom();
+    }
 
-                if (!isSlotUsed(i)) {
-                    throw new DbException("hhh");
-                }
-                tuples[i] = null;
-                markSlotUsed(i, false);
-                return;
+    /**
+     * Returns the length of the largest record that can be added to this
+     * slotted page, in bytes as getRecordLength counts them, or -1 if every
+     * slot is used.
+     */
+    int getRoom() {
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                int entries = Math.max(getNumEntries(), i + 1);
+                return Math.max(0, getFreeBytes(entries));
             }
         }
-        throw new DbException("hhh");
+        return -1;
     }
 
     /**
@@ -289,16 +572,22 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (getNumEmptySlots() == 0) {
+        if (!td.equals(t.getTupleDesc())) {
             throw new DbException("hhh");
         }
-        for (int i = 0; i < getNumTuples(); i++) {
-            if (tuples[i] != null && !t.getTupleDesc().equals(tuples[i].getTupleDesc())) {
-                throw new DbException("hhh");
-            }
+        if (!hasRoomFor(t)) {
+            throw new DbException("hhh");
+        }
+        // a tuple read from another page must not keep that page alive
+        t.detach();
+        for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
                 tuples[i] = t;
                 tuples[i].setRecordId(new RecordId(getId(), i));
+                if (slotted) {
+                    recordLengths[i] = getRecordLength(t);
+                    usedBytes += recordLengths[i];
+                }
                 markSlotUsed(i, true);
                 return;
             }
@@ -330,11 +619,37 @@ public class HeapPage implements Page {
         return this.transactionId;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
-     * Returns the number of empty slots on this page.
+     * Returns the number of empty slots on this page. On a slotted page this is
+     * the number of tuples of the smallest possible size that still fit.
      */
     public int getNumEmptySlots() {
         // some code goes here
+        if (slotted) {
+            int entries = getNumEntries();
+            int free = getFreeBytes(entries);
+            int minLen = getMinRecordLength();
+            int emptyEntries = 0;
+            for (int i = 0; i < entries; i++) {
+                if (!isSlotUsed(i)) {
+                    emptyEntries++;
+                }
+            }
+            int res = Math.min(emptyEntries, free / minLen);
+            if (res == emptyEntries) {
+                free -= res * minLen;
+                res += Math.min(numSlots - entries, free / (minLen + SLOT_ENTRY_SIZE));
+            }
+            return res;
+        }
         int res = 0;
         for (int i = 0; i < numSlots; i ++ ) {
             if ((header[i / 8] >> (i % 8) & 1) == 0) {
@@ -349,6 +664,9 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
+        if (slotted) {
+            return i < numSlots && recordLengths[i] > 0;
+        }
         int index = i / 8;
         int offset = i % 8;
         int tmp = 1 << (offset);
@@ -364,6 +682,14 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        if (slotted) {
+            // a slot is used while its record has a length
+            if (!value) {
+                usedBytes -= recordLengths[i];
+                recordLengths[i] = 0;
+            }
+            return;
+        }
         int index = i / 8;
         int offset = i % 8;
         int tmp = 1 << (offset);
@@ -381,14 +707,40 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tuples = new ArrayList<>();
-        int num = getNumTuples();
-        for (int i = 0; i < num; i++) {
-            if (isSlotUsed(i)) {
-                tuples.add(this.tuples[i]);
-            }
+        // iterate over the slots in use when the iterator was created, so that
+        // tuples inserted while iterating are not returned
+        final boolean[] used = new boolean[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            used[i] = isSlotUsed(i);
         }
-        return tuples.iterator();
+        return new Iterator<Tuple>() {
+            private int slot;
+            private Tuple next = advance(0);
+
+            private Tuple advance(int from) {
+                for (slot = from; slot < numSlots; slot++) {
+                    if (used[slot] && isSlotUsed(slot)) {
+                        return getTuple(slot);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = advance(slot + 1);
+                return t;
+            }
+        };
     }
 
 }
@@ -2,10 +2,14 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.*;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -22,7 +26,7 @@ Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+pages (on recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -53,25 +57,68 @@ must not be declared synchronized and must begin with a block like:
  * transaction id.
  *
  * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * the position in the log file where the record began.  That offset is the
+ * record's LSN.
  *
- * <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- * CHECKPOINT
+ * <li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+ * BEGIN, and CHECKPOINT
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
- * <li>UPDATE RECORDS consist of two entries, a before image and an
+ * <li> UPDATE, DELTA and CLR records continue with the LSN of the previous
+ * record of their transaction, so that a transaction's records can be
+ * followed back to its BEGIN record without reading anyone else's.
+ *
+ * <li>UPDATE RECORDS then consist of two entries, a before image and an
  * after image.  These images are serialized Page objects, and can be
  * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * methods.  See LogFile.print() for an example.  Each image starts with a
+ * one-byte tag for the class of the page, which also determines the class
+ * of its id; pages of any class without a tag are tagged OTHER_PAGE and
+ * followed by the names of both classes.
+ *
+ * <li> DELTA records log a change to a page more compactly than UPDATE
+ * records: they hold the page's tag and id and then only the byte ranges
+ * that changed, each with its old and new bytes (see PageDelta).  A page's
+ * first change after a checkpoint is still logged with full images, so
+ * that recovery can restore the page even if it was only partly written
+ * when the system crashed; later changes to it are logged as DELTA
+ * records, unless its class has no tag.
+ *
+ * <li> CLR (compensation) records are written while rolling back a
+ * transaction, one for each UPDATE or DELTA record undone.  They hold the
+ * LSN of the next record of the transaction left to undo, then the type of
+ * the change they make (UPDATE or DELTA) and the change itself, which puts
+ * back the page as it was before the undone record.  CLRs are only ever
+ * redone, so a rollback cut short by a crash carries on where it stopped.
  *
  * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * the checkpoint was taken and their first and last log records on disk,
+ * and of the pages whose logged changes may not have been written yet.
+ * The format of the record is an integer count of the number of
+ * transactions, as well as a long integer transaction id, a long integer
+ * first record offset and a long integer last record offset for each
+ * active transaction; then an integer count of the number of such pages,
+ * and for each the offset of the first record of a change it may lack
+ * (its recLSN), which names the page.
+ *
+ * <li> Checkpoints are fuzzy: they write no pages and do not stop other
+ * transactions, which go on logging while the checkpoint record is forced.
  *
  * </ul>
+ *
+ * <p> Log records are encoded into a reusable direct buffer rather than
+ * written to the file one field at a time, and the buffer goes to the file
+ * in a single write when it fills up or the log needs to be read or forced. Forcing is group commit: force() and
+ * logCommit() ask a flusher thread to make the log durable up to their last
+ * record and wait until it has, and the flusher writes out everything
+ * buffered by then and forces it with a single fsync. While it forces, the
+ * next committers append their records and queue up behind it, so however
+ * many transactions commit concurrently the log takes one fsync per round
+ * rather than one per commit. The flusher is started on the first force
+ * and stops again after FLUSHER_IDLE_MILLIS without one. Callers that hold
+ * the LogFile's monitor, such as recovery, cannot wait for the flusher
+ * and force the log themselves.
  */
 public class LogFile {
 
@@ -84,16 +131,57 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // tags for the class of a logged page image
+    static final byte OTHER_PAGE = 0;
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_HEADER_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_INTERNAL_PAGE = 5;
+
+    // size of the buffer log records are encoded into; a record that does
+    // not fit gets a buffer of its own size
+    static final int APPEND_BUFFER_BYTES = 1 << 20;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    // records appended but not yet written to the file, and the offset in
+    // the file where they go
+    private ByteBuffer pending = ByteBuffer.allocateDirect(APPEND_BUFFER_BYTES); //protected by this
+    private long pendingOffset = -1; //protected by this
+
+    // byte counts since the log was opened; unlike file offsets they never
+    // go back when the log is truncated
+    private long writtenBytes = 0; //protected by this
+    private long requestedBytes = 0; //protected by this
+    private long durableBytes = 0; //protected by this
+    private long forceCount = 0; //protected by this
+
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+    private Thread flusher; //protected by this
+    private IOException flushError; //protected by this
+    // held while forcing raf, so that it is not closed or replaced meanwhile;
+    // only ever taken after this, or on its own
+    private final Object forceLock = new Object();
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
+    final Map<Long, Long> tidToLastLogRecord = new HashMap<>();
+    // pages logged with full images since the last checkpoint
+    private final Set<PageId> imagedPages = new HashSet<>(); //protected by this
+    // pages logged but not written since, with the first such record
+    private final Map<PageId, Long> unwrittenPages = new HashMap<>(); //protected by this
+    // held by checkpoints and truncation, so that the log is not truncated
+    // while a checkpoint waits for its record to be forced; only ever
+    // taken before this
+    private final Object checkpointLock = new Object();
 
     /**
      * Constructor.
@@ -135,6 +223,135 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            pendingOffset = currentOffset;
+            imagedPages.clear();
+            unwrittenPages.clear();
+        }
+    }
+
+    /**
+     * Writes the buffered log records to the file. Must be called holding
+     * this.
+     */
+    private void writePending() throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        FileChannel channel = raf.getChannel();
+        long offset = pendingOffset;
+        while (pending.hasRemaining()) {
+            offset += channel.write(pending, offset);
+        }
+        writtenBytes += offset - pendingOffset;
+        pendingOffset = offset;
+        pending.clear();
+    }
+
+    /**
+     * Makes room in the buffer for a record of the given size, writing out
+     * the buffered records if need be. Must be called holding this.
+     */
+    private void reserve(int bytes) throws IOException {
+        if (pending.remaining() >= bytes) {
+            return;
+        }
+        writePending();
+        if (pending.capacity() < bytes) {
+            pending = ByteBuffer.allocateDirect(bytes);
+        }
+    }
+
+    /**
+     * Appends a record with no data besides its type and transaction id.
+     * Must be called holding this, after preAppend().
+     */
+    private void appendRecord(int type, long tid) throws IOException {
+        reserve(INT_SIZE + LONG_SIZE + LONG_SIZE);
+        pending.putInt(type);
+        pending.putLong(tid);
+        pending.putLong(currentOffset);
+        currentOffset = pendingOffset + pending.position();
+    }
+
+    /**
+     * Writes the buffered log records to the file and forces it to disk
+     * right away, without waiting for the flusher. Must be called holding
+     * this.
+     */
+    private void forceNow() throws IOException {
+        writePending();
+        synchronized (forceLock) {
+            raf.getChannel().force(true);
+        }
+        forceCount++;
+        durableBytes = writtenBytes;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the first appendedBytes bytes appended to the log are on
+     * disk, having the flusher force them if no one has yet.
+     */
+    private synchronized void awaitDurable(long appendedBytes) throws IOException {
+        if (appendedBytes > requestedBytes) {
+            requestedBytes = appendedBytes;
+            if (flusher == null) {
+                flusher = new Thread(this::flushLoop, "log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            notifyAll();
+        }
+        while (durableBytes < appendedBytes) {
+            if (flushError != null) {
+                throw new IOException("forcing the log failed", flushError);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Body of the flusher thread: forces the log whenever someone waits for
+     * it, covering everything appended by the time the force starts.
+     */
+    private void flushLoop() {
+        try {
+            while (true) {
+                long target;
+                synchronized (this) {
+                    long idleSince = System.currentTimeMillis();
+                    while (requestedBytes <= durableBytes) {
+                        long idle = System.currentTimeMillis() - idleSince;
+                        if (idle >= FLUSHER_IDLE_MILLIS) {
+                            flusher = null;
+                            return;
+                        }
+                        wait(FLUSHER_IDLE_MILLIS - idle);
+                    }
+                    writePending();
+                    target = writtenBytes;
+                }
+                synchronized (forceLock) {
+                    raf.getChannel().force(true);
+                }
+                synchronized (this) {
+                    forceCount++;
+                    durableBytes = Math.max(durableBytes, target);
+                    notifyAll();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            synchronized (this) {
+                flushError = e instanceof IOException ? (IOException) e : new InterruptedIOException();
+                flusher = null;
+                notifyAll();
+            }
         }
     }
 
@@ -151,6 +368,7 @@ public class LogFile {
     public void logAbort(TransactionId tid) throws IOException {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
+        long appended;
 
         synchronized (Database.getBufferPool()) {
 
@@ -163,14 +381,13 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                appendRecord(ABORT_RECORD, tid.getId());
+                appended = writtenBytes + pending.position();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
+        awaitDurable(appended);
     }
 
     /**
@@ -179,23 +396,26 @@ public class LogFile {
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long appended;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            appendRecord(COMMIT_RECORD, tid.getId());
+            appended = writtenBytes + pending.position();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        awaitDurable(appended);
     }
 
     /**
      * Write an UPDATE record to disk for the specified tid and page
-     * (with provided         before and after images.)
+     * (with provided         before and after images), or a DELTA record
+     * of the differences between them if the page has been logged with
+     * full images since the last checkpoint.
      *
      * @param tid    The transaction performing the write
      * @param before The before image of the page
@@ -205,52 +425,153 @@ public class LogFile {
     public synchronized void logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
            transaction id
+           previous record of the transaction
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        byte tag = pageTag(after);
+        long start = currentOffset;
+        if (tag == OTHER_PAGE || imagedPages.add(after.getId())) {
+            reserve(INT_SIZE + LONG_SIZE + LONG_SIZE + pageDataSize(before, beforeData)
+                    + pageDataSize(after, afterData) + LONG_SIZE);
+            pending.putInt(UPDATE_RECORD);
+            pending.putLong(tid.getId());
+            pending.putLong(lastRecord(tid.getId()));
+
+            writePageData(pending, before, beforeData);
+            writePageData(pending, after, afterData);
+        } else {
+            PageDelta delta = PageDelta.diff(tag, after.getId(), beforeData, afterData);
+            reserve(INT_SIZE + LONG_SIZE + LONG_SIZE + delta.size() + LONG_SIZE);
+            pending.putInt(DELTA_RECORD);
+            pending.putLong(tid.getId());
+            pending.putLong(lastRecord(tid.getId()));
+
+            delta.write(pending);
+        }
+        pending.putLong(start);
+        currentOffset = pendingOffset + pending.position();
+        tidToLastLogRecord.put(tid.getId(), start);
+        unwrittenPages.putIfAbsent(after.getId(), start);
+        after.setLSN(start);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
+    /**
+     * Tells the log that the given page has been written to disk since its
+     * last change was logged, so that checkpoints stop counting it among the
+     * pages whose logged changes may be missing from disk.
+     *
+     * @param pid the id of the page written
+     */
+    public synchronized void pageWritten(PageId pid) {
+        unwrittenPages.remove(pid);
+    }
+
+    /**
+     * @return the LSN of the last record of the given transaction, or -1 if
+     *         it has none
+     */
+    private long lastRecord(long tid) {
+        Long last = tidToLastLogRecord.get(tid);
+        return last == null ? -1 : last;
+    }
+
+    /**
+     * Appends a CLR for the given transaction, which compensates for the
+     * given change by putting its page back as it was before it. Must be
+     * called holding this.
+     *
+     * @param undoNext the LSN of the next record of the transaction to undo
+     * @return the LSN of the CLR
+     */
+    private long appendCompensation(long tid, Change change, long undoNext) throws IOException {
+        Change compensation = change.inverse();
+        reserve(INT_SIZE + LONG_SIZE + LONG_SIZE + LONG_SIZE + INT_SIZE
+                + changeSize(compensation) + LONG_SIZE);
+        long start = currentOffset;
+        pending.putInt(CLR_RECORD);
+        pending.putLong(tid);
+        pending.putLong(lastRecord(tid));
+        pending.putLong(undoNext);
+        pending.putInt(compensation.type());
+        writeChange(pending, compensation);
+        pending.putLong(start);
+        currentOffset = pendingOffset + pending.position();
+        tidToLastLogRecord.put(tid, start);
+        return start;
+    }
+
+    static byte pageTag(Page p) {
+        Class<?> c = p.getClass();
+        if (c == HeapPage.class) {
+            return HEAP_PAGE;
+        } else if (c == BTreeRootPtrPage.class) {
+            return BTREE_ROOT_PTR_PAGE;
+        } else if (c == BTreeHeaderPage.class) {
+            return BTREE_HEADER_PAGE;
+        } else if (c == BTreeLeafPage.class) {
+            return BTREE_LEAF_PAGE;
+        } else if (c == BTreeInternalPage.class) {
+            return BTREE_INTERNAL_PAGE;
+        }
+        return OTHER_PAGE;
+    }
+
+    /**
+     * @return the number of bytes writePageData takes for the given page,
+     *         whose serialized data is pageData
+     */
+    static int pageDataSize(Page p, byte[] pageData) {
+        int size = 1 + INT_SIZE + INT_SIZE * p.getId().serialize().length + INT_SIZE + pageData.length;
+        if (pageTag(p) == OTHER_PAGE) {
+            size += 2 + p.getClass().getName().length() + 2 + p.getId().getClass().getName().length();
+        }
+        return size;
+    }
+
+    static void writeName(ByteBuffer buf, String name) {
+        // the encoding readUTF() reads, for the ASCII of a class name
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    void writePageData(ByteBuffer buf, Page p, byte[] pageData) {
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
+        // page tag
+        // page class name and id class name, for OTHER_PAGE only
         // id class bytes
         // id class data
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        byte tag = pageTag(p);
+        buf.put(tag);
+        if (tag == OTHER_PAGE) {
+            writeName(buf, p.getClass().getName());
+            writeName(buf, pid.getClass().getName());
+        }
 
-        raf.writeInt(pageInfo.length);
+        buf.putInt(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            buf.putInt(j);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        buf.putInt(pageData.length);
+        buf.put(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
@@ -258,6 +579,17 @@ public class LogFile {
         PageId pid;
         Page newPage = null;
 
+        byte tag = raf.readByte();
+        if (tag != OTHER_PAGE) {
+            int[] pageInfo = new int[raf.readInt()];
+            for (int i = 0; i < pageInfo.length; i++) {
+                pageInfo[i] = raf.readInt();
+            }
+            byte[] pageData = new byte[raf.readInt()];
+            raf.readFully(pageData);
+            return newPage(tag, pageInfo, pageData);
+        }
+
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
 
@@ -294,6 +626,43 @@ public class LogFile {
 
     }
 
+    /**
+     * Builds a page of the class the given tag stands for from its id and
+     * data, as written by writePageData.
+     */
+    static Page newPage(byte tag, int[] pageInfo, byte[] pageData) throws IOException {
+        if (tag == HEAP_PAGE) {
+            return new HeapPage(new HeapPageId(pageInfo[0], pageInfo[1]), pageData);
+        }
+        BTreePageId pid = (BTreePageId) newPageId(tag, pageInfo);
+        switch (tag) {
+            case BTREE_ROOT_PTR_PAGE:
+                return new BTreeRootPtrPage(pid, pageData);
+            case BTREE_HEADER_PAGE:
+                return new BTreeHeaderPage(pid, pageData);
+            case BTREE_LEAF_PAGE:
+                return new BTreeLeafPage(pid, pageData, keyField(pid));
+            case BTREE_INTERNAL_PAGE:
+                return new BTreeInternalPage(pid, pageData, keyField(pid));
+            default:
+                throw new IOException("unknown page tag " + tag);
+        }
+    }
+
+    /**
+     * @return the id of a page of the class the given tag stands for
+     */
+    static PageId newPageId(byte tag, int[] pageInfo) {
+        if (tag == HEAP_PAGE) {
+            return new HeapPageId(pageInfo[0], pageInfo[1]);
+        }
+        return new BTreePageId(pageInfo[0], pageInfo[1], pageInfo[2]);
+    }
+
+    private static int keyField(BTreePageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
     /**
      * Write a BEGIN record for the specified transaction
      *
@@ -307,157 +676,258 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
         //  System.out.println(tidToFirstLogRecord);
-        currentOffset = raf.getFilePointer();
+        appendRecord(BEGIN_RECORD, tid.getId());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * The record lists the active transactions and the pages whose logged
+     * changes may not be on disk yet, which is all recovery needs to start
+     * from it; no pages are written. Every committed page is written before
+     * its COMMIT record, so the only such pages are those a flush has
+     * logged but not yet written. The record is forced through the flusher,
+     * without holding this, and only then does the log header point to it.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long startCpOffset;
+            long appended;
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
 
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                reserve(INT_SIZE + LONG_SIZE + INT_SIZE + keys.size() * 3 * LONG_SIZE
+                        + INT_SIZE + unwrittenPages.size() * LONG_SIZE + LONG_SIZE);
+                startCpOffset = currentOffset;
+                pending.putInt(CHECKPOINT_RECORD);
+                pending.putLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
+                pending.putInt(keys.size());
+                for (Long key : keys) {
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    pending.putLong(key);
+                    pending.putLong(tidToFirstLogRecord.get(key));
+                    pending.putLong(lastRecord(key));
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                //and the recLSNs of the pages not written since logged
+                pending.putInt(unwrittenPages.size());
+                for (Long recLsn : unwrittenPages.values()) {
+                    pending.putLong(recLsn);
+                }
+                pending.putLong(startCpOffset);
+                currentOffset = pendingOffset + pending.position();
+                appended = writtenBytes + pending.position();
+                imagedPages.clear();
+            }
+            awaitDurable(appended);
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            synchronized (this) {
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
-        }
-
-        logTruncate();
 
+            logTruncate();
+        }
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
      * consumption
      */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock) {
+            truncate();
+        }
+    }
+
+    /**
+     * Drops the log before the oldest record recovery may still need: the
+     * first record of the transactions active at the last checkpoint, or a
+     * change logged before it that may not have been written yet. The
+     * records after it are copied to a new file, with the offsets they hold
+     * moved, and the new file then replaces the log.
+     * <p>
+     * The records are copied without holding this, so transactions go on
+     * appending to the log meanwhile; only the records appended during the
+     * copy are copied holding this, followed by the swap of the files. Must
+     * be called holding checkpointLock, which keeps checkpoints, and so
+     * changes to the log header, out until the swap.
+     */
+    private void truncate() throws IOException {
+        long cpLoc;
+        long minLogRecord;
+        long copyEnd;
+        synchronized (this) {
+            preAppend();
+            writePending();
+            raf.seek(0);
+            cpLoc = raf.readLong();
 
-        long minLogRecord = cpLoc;
+            minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            if (cpLoc != -1L) {
+                raf.seek(cpLoc);
+                int cpType = raf.readInt();
+                @SuppressWarnings("unused")
+                long cpTid = raf.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+                if (cpType != CHECKPOINT_RECORD) {
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                }
 
-            int numOutstanding = raf.readInt();
+                int numOutstanding = raf.readInt();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+                for (int i = 0; i < numOutstanding; i++) {
+                    @SuppressWarnings("unused")
+                    long tid = raf.readLong();
+                    long firstLogRecord = raf.readLong();
+                    raf.readLong();
+                    if (firstLogRecord < minLogRecord) {
+                        minLogRecord = firstLogRecord;
+                    }
+                }
+
+                // redo may have to start at a change logged before the checkpoint
+                int numUnwritten = raf.readInt();
+                for (int i = 0; i < numUnwritten; i++) {
+                    long recLsn = raf.readLong();
+                    if (recLsn < minLogRecord) {
+                        minLogRecord = recLsn;
+                    }
                 }
             }
+            copyEnd = pendingOffset;
         }
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        FileOutputStream newOut = new FileOutputStream(newFile);
+        try (RandomAccessFile in = new RandomAccessFile(logFile, "r")) {
+            DataOutputStream logNew = new DataOutputStream(new BufferedOutputStream(newOut));
+            logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+            in.seek(minLogRecord);
+            copyRecords(in, copyEnd, logNew, minLogRecord);
+            logNew.flush();
+            newOut.getChannel().force(true);
 
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
+            synchronized (this) {
+                // the records appended since the copy started
+                writePending();
+                copyRecords(in, pendingOffset, logNew, minLogRecord);
+                logNew.flush();
+                newOut.getChannel().force(true);
+                newOut.close();
+
+                Debug.log("TRUNCATING LOG;  WAS " + pendingOffset + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (pendingOffset - minLogRecord));
+
+                synchronized (forceLock) {
+                    raf.close();
+                    logFile.delete();
+                    newFile.renameTo(logFile);
+                    raf = new RandomAccessFile(logFile, "rw");
                 }
+                raf.seek(raf.length());
+                // everything written so far is in the forced copy
+                durableBytes = writtenBytes;
+                notifyAll();
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                currentOffset = raf.getFilePointer();
+                pendingOffset = currentOffset;
+                for (Map.Entry<Long, Long> first : tidToFirstLogRecord.entrySet()) {
+                    first.setValue(truncatedOffset(first.getValue(), minLogRecord));
+                }
+                for (Map.Entry<Long, Long> last : tidToLastLogRecord.entrySet()) {
+                    last.setValue(truncatedOffset(last.getValue(), minLogRecord));
+                }
+                for (Map.Entry<PageId, Long> unwritten : unwrittenPages.entrySet()) {
+                    unwritten.setValue(truncatedOffset(unwritten.getValue(), minLogRecord));
+                }
             }
+        } finally {
+            newOut.close();
+            newFile.delete();
         }
+        //print();
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /**
+     * Copies the records from the position of in up to offset end to out,
+     * rewriting the offsets they hold for a log truncated to start at
+     * minLogRecord. Each record keeps its size, so a record ends up at its
+     * own offset moved the same way.
+     */
+    private void copyRecords(RandomAccessFile in, long end, DataOutputStream out, long minLogRecord)
+            throws IOException {
+        //have to rewrite log records since offsets are different after truncation
+        while (in.getFilePointer() < end) {
+            long newStart = truncatedOffset(in.getFilePointer(), minLogRecord);
+            int type = in.readInt();
+            long record_tid = in.readLong();
+
+            Debug.log("NEW START = " + newStart);
+
+            out.writeInt(type);
+            out.writeLong(record_tid);
+
+            switch (type) {
+                case UPDATE_RECORD:
+                case DELTA_RECORD:
+                case CLR_RECORD:
+                    out.writeLong(truncatedOffset(in.readLong(), minLogRecord));
+                    int kind = type;
+                    if (type == CLR_RECORD) {
+                        out.writeLong(truncatedOffset(in.readLong(), minLogRecord));
+                        kind = in.readInt();
+                        out.writeInt(kind);
+                    }
+                    Change change = readChange(in, kind);
+                    ByteBuffer body = ByteBuffer.allocate(changeSize(change));
+                    writeChange(body, change);
+                    out.write(body.array());
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = in.readInt();
+                    out.writeInt(numXactions);
+                    while (numXactions-- > 0) {
+                        long xid = in.readLong();
+                        long xoffset = in.readLong();
+                        long xlast = in.readLong();
+                        out.writeLong(xid);
+                        out.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        out.writeLong(truncatedOffset(xlast, minLogRecord));
+                    }
+                    int numUnwritten = in.readInt();
+                    out.writeInt(numUnwritten);
+                    while (numUnwritten-- > 0) {
+                        out.writeLong(truncatedOffset(in.readLong(), minLogRecord));
+                    }
+                    break;
+            }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+            //all xactions finish with a pointer
+            out.writeLong(newStart);
+            in.readLong();
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /**
+     * @return where the record at the given offset ends up once the log is
+     *         truncated to start at minLogRecord, or -1 if it is cut off
+     */
+    private static long truncatedOffset(long offset, long minLogRecord) {
+        return offset < minLogRecord ? -1 : (offset - minLogRecord) + LONG_SIZE;
     }
 
     /**
@@ -477,6 +947,7 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
+                writePending();
                 long tidId = tid.getId();
                 // some code goes here
                 myRollback(tidId);
@@ -486,35 +957,160 @@ public class LogFile {
     }
 
 
+    /**
+     * Undoes the UPDATE and DELTA records of the given transaction newest
+     * first, following the transaction's own records back from its last one
+     * and writing a CLR for each record undone. CLRs left by an earlier
+     * rollback are skipped over along with the records they compensate for.
+     */
     public void myRollback(Long tidId) throws IOException {
         // some code goes here
-        Long begin = tidToFirstLogRecord.get(tidId);
-        raf.seek(begin);
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long curTid = raf.readLong();
-                if (curTid != tidId) {
-                    if(type == 3){
-                        readPageData(raf);
-                        readPageData(raf);
-                    }
-                } else {
-                    if (type == 3) {
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-                        DbFile databaseFile = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                        databaseFile.writePage(before);
-                        Database.getBufferPool().discardPage(after.getId());
-                        raf.seek(raf.getFilePointer() + 8);
-                        break;
-                    }
-                }
-                raf.seek(raf.getFilePointer() + 8);
-            } catch (EOFException e) {
+        long lsn = lastRecord(tidId);
+        while (lsn != -1) {
+            raf.seek(lsn);
+            int type = raf.readInt();
+            raf.readLong();
+            if (type == BEGIN_RECORD) {
                 break;
             }
+            long prev = raf.readLong();
+            if (type == CLR_RECORD) {
+                lsn = raf.readLong();
+                continue;
+            }
+            Change change = readChange(type);
+            change.install(false);
+            unwrittenPages.remove(change.getPageId());
+            appendCompensation(tidId, change, prev);
+            Database.getBufferPool().discardPage(change.getPageId());
+            lsn = prev;
+        }
+    }
+
+    /** A change to a page read back from an UPDATE or DELTA record. */
+    private static class Change {
+        final Page before;
+        final Page after;
+        final PageDelta delta;
+
+        Change(Page before, Page after) {
+            this.before = before;
+            this.after = after;
+            this.delta = null;
+        }
+
+        Change(PageDelta delta) {
+            this.before = null;
+            this.after = null;
+            this.delta = delta;
+        }
+
+        /**
+         * @return the type of record the change is logged as
+         */
+        int type() {
+            return delta == null ? UPDATE_RECORD : DELTA_RECORD;
+        }
+
+        PageId getPageId() {
+            return delta == null ? after.getId() : delta.getPageId();
+        }
+
+        /**
+         * @return the change that undoes this one
+         */
+        Change inverse() {
+            return delta == null ? new Change(after, before) : new Change(delta.inverse());
+        }
+
+        /**
+         * @return the given version of the change's page as it is before the
+         *         change, or after it if redo is true
+         */
+        Page apply(Page page, boolean redo) throws IOException {
+            if (delta == null) {
+                return redo ? after : before;
+            }
+            return delta.apply(page, redo);
+        }
+
+        /**
+         * Writes the page as it was before the change, or after it if redo
+         * is true, to its file. A DELTA record is applied to the page as it
+         * is on disk.
+         */
+        void install(boolean redo) throws IOException {
+            DbFile file = Database.getCatalog().getDatabaseFile(getPageId().getTableId());
+            Page page = null;
+            if (delta != null) {
+                page = diskPage(delta.getPageId());
+                if (page == null) {
+                    page = emptyPage(delta.getPageId());
+                }
+            }
+            file.writePage(apply(page, redo));
+        }
+    }
+
+    /**
+     * Reads a change logged as the given type of record (UPDATE or DELTA),
+     * from after its previous record LSN up to its start offset.
+     */
+    private Change readChange(int type) throws IOException {
+        return readChange(raf, type);
+    }
+
+    private Change readChange(RandomAccessFile in, int type) throws IOException {
+        if (type == DELTA_RECORD) {
+            return new Change(PageDelta.read(in));
+        }
+        Page before = readPageData(in);
+        Page after = readPageData(in);
+        return new Change(before, after);
+    }
+
+    /**
+     * @return the number of bytes writeChange takes for the given change
+     */
+    private int changeSize(Change change) {
+        if (change.delta != null) {
+            return change.delta.size();
+        }
+        return pageDataSize(change.before, change.before.getPageData())
+                + pageDataSize(change.after, change.after.getPageData());
+    }
+
+    private void writeChange(ByteBuffer buf, Change change) {
+        if (change.delta != null) {
+            change.delta.write(buf);
+            return;
+        }
+        writePageData(buf, change.before, change.before.getPageData());
+        writePageData(buf, change.after, change.after.getPageData());
+    }
+
+    /**
+     * Reads the change of an UPDATE, DELTA or CLR record, after its type and
+     * transaction id and up to its start offset.
+     */
+    private Change readRecordChange(int type) throws IOException {
+        raf.readLong();
+        if (type == CLR_RECORD) {
+            raf.readLong();
+            type = raf.readInt();
         }
+        return readChange(type);
+    }
+
+    /**
+     * Skips the body of a CHECKPOINT record, after its type and transaction
+     * id and up to its start offset.
+     */
+    private void skipCheckpoint() throws IOException {
+        int numXactions = raf.readInt();
+        raf.seek(raf.getFilePointer() + numXactions * (LONG_SIZE + LONG_SIZE + LONG_SIZE));
+        int numUnwritten = raf.readInt();
+        raf.seek(raf.getFilePointer() + numUnwritten * LONG_SIZE);
     }
 
     /**
@@ -522,10 +1118,15 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                writePending();
+                synchronized (forceLock) {
+                    raf.close();
+                }
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -536,86 +1137,250 @@ public class LogFile {
      * Recover the database system by ensuring that the updates of
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
+     * <p>
+     * Recovery makes three passes over the log, ARIES style:
+     * <ul>
+     * <li> Analysis reads forward from the last checkpoint, or from the
+     * oldest recLSN it lists if that comes first, finding the transactions
+     * that never finished (the losers) with their last record, and the
+     * dirty pages: those whose disk version may be missing logged changes,
+     * each with the LSN of the first such change (its recLSN). Every page
+     * of a finished transaction is written before its COMMIT or ABORT
+     * record (BufferPool forces pages at commit, and rollback writes them
+     * back), so only the losers' pages can be dirty.
+     * <li> Redo reads forward from the smallest recLSN, applying each change
+     * to a dirty page whose LSN is smaller than the change's. Page data has
+     * no room for an LSN, so a page read from disk gets the LSN just before
+     * its recLSN.
+     * <li> Undo follows the losers' records back, newest first across all
+     * of them, undoing each UPDATE and DELTA record and writing a CLR for
+     * it, and jumping over the records that CLRs already compensate for.
+     * </ul>
+     * The pages are then written, and an ABORT record for each loser ends
+     * the log. The cost of recovery is proportional to the log written
+     * since the last checkpoint, and to the losers' records before it.
+     * <p>
+     * A page that fails its checksum is read as it is instead of failing
+     * recovery (see PageChecksums.setRecovering), and written back with the
+     * others.
      */
-    public void recoverSearch(RandomAccessFile raf, Map<Long, List<Page[]>> map) throws IOException {
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long curTid = raf.readLong();
-                if (type == 3) {
-                    if (!map.containsKey(curTid)) {
-                        map.put(curTid, new ArrayList<>());
-                    }
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-                    Page[] pages = new Page[2];
-                    pages[0] = before;
-                    pages[1] = after;
-                    map.get(curTid).add(pages);
-                } else if (type == 2 && map.containsKey(curTid)) {
-                    Page[] pages = map.get(curTid).get(map.get(curTid).size() - 1);
-                    Page before = pages[0];
-                    Page after = pages[1];
-                    DbFile databaseFile = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                    databaseFile.writePage(after);
-                    map.remove(curTid);
-                } else if (type == 1 && map.containsKey(curTid)) {
-                    Page[] pages = map.get(curTid).get(0);
-                    Page before = pages[0];
-                    Page after = pages[1];
-                    DbFile databaseFile = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                    databaseFile.writePage(before);
-                    map.remove(curTid);
-                }
-                raf.seek(raf.getFilePointer() + 8);
-            } catch (EOFException e) {
-                break;
-            }
+    public void recover() throws IOException {
+        PageChecksums.setRecovering(true);
+        try {
+            recoverPasses();
+        } finally {
+            PageChecksums.setRecovering(false);
         }
     }
 
-    public void recover() throws IOException {
+    private void recoverPasses() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                Map<Long, List<Page[]>> map = new HashMap<>();
+                writePending();
+                if (raf.length() == 0) {
+                    return;
+                }
                 raf.seek(0);
-                print();
                 long checkpoint = raf.readLong();
-                if (checkpoint != -1) {
-                    Map<Long, Long> pos = new HashMap<>();
-                    raf.seek(checkpoint);
-                    raf.seek(raf.getFilePointer() + 12);
-                    int num = raf.readInt();
-                    while (num > 0) {
-                        long curTid = raf.readLong();
-                        long off = raf.readLong();
-                        pos.put(curTid, off);
-                        num--;
+
+                // analysis
+                Map<Long, Long> losers = new HashMap<>();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                Map<Long, Set<PageId>> loserPages = new HashMap<>();
+                if (checkpoint != NO_CHECKPOINT_ID) {
+                    raf.seek(checkpoint + INT_SIZE + LONG_SIZE);
+                    int numXactions = raf.readInt();
+                    while (numXactions-- > 0) {
+                        long tid = raf.readLong();
+                        tidToFirstLogRecord.put(tid, raf.readLong());
+                        losers.put(tid, raf.readLong());
+                    }
+                    long scanStart = Long.MAX_VALUE;
+                    int numUnwritten = raf.readInt();
+                    while (numUnwritten-- > 0) {
+                        scanStart = Math.min(scanStart, raf.readLong());
+                    }
+                    raf.readLong();
+                    if (scanStart < raf.getFilePointer()) {
+                        raf.seek(scanStart);
+                    }
+                }
+                long end = raf.getFilePointer();
+                while (true) {
+                    try {
+                        long lsn = raf.getFilePointer();
+                        int type = raf.readInt();
+                        long tid = raf.readLong();
+                        switch (type) {
+                            case BEGIN_RECORD:
+                                tidToFirstLogRecord.put(tid, lsn);
+                                losers.merge(tid, lsn, Math::max);
+                                break;
+                            case COMMIT_RECORD:
+                            case ABORT_RECORD:
+                                tidToFirstLogRecord.remove(tid);
+                                losers.remove(tid);
+                                Set<PageId> written = loserPages.remove(tid);
+                                if (written != null) {
+                                    dirtyPages.keySet().removeAll(written);
+                                }
+                                break;
+                            case UPDATE_RECORD:
+                            case DELTA_RECORD:
+                            case CLR_RECORD:
+                                PageId pid = readRecordChange(type).getPageId();
+                                losers.merge(tid, lsn, Math::max);
+                                dirtyPages.putIfAbsent(pid, lsn);
+                                loserPages.computeIfAbsent(tid, k -> new HashSet<>()).add(pid);
+                                break;
+                            case CHECKPOINT_RECORD:
+                                skipCheckpoint();
+                                break;
+                        }
+                        raf.readLong();
+                        end = raf.getFilePointer();
+                    } catch (EOFException e) {
+                        break;
                     }
-                    for (Long i : pos.keySet()) {
-                        raf.seek(pos.get(i));
-                        recoverSearch(raf, map);
+                }
+                // drop a record cut short by the crash, and carry on the log
+                // after the last whole one
+                raf.setLength(end);
+                recoveryUndecided = false;
+                currentOffset = end;
+                pendingOffset = end;
+
+                // redo
+                Map<PageId, Page> pages = new HashMap<>();
+                if (!dirtyPages.isEmpty()) {
+                    raf.seek(Collections.min(dirtyPages.values()));
+                    while (raf.getFilePointer() < end) {
+                        long lsn = raf.getFilePointer();
+                        int type = raf.readInt();
+                        raf.readLong();
+                        if (type == UPDATE_RECORD || type == DELTA_RECORD || type == CLR_RECORD) {
+                            Change change = readRecordChange(type);
+                            Long recLsn = dirtyPages.get(change.getPageId());
+                            if (recLsn != null && lsn >= recLsn) {
+                                Page page = recoveryPage(pages, change.getPageId(), dirtyPages, end);
+                                if (lsn > page.getLSN()) {
+                                    page = change.apply(page, true);
+                                    page.setLSN(lsn);
+                                    pages.put(page.getId(), page);
+                                }
+                            }
+                        } else if (type == CHECKPOINT_RECORD) {
+                            skipCheckpoint();
+                        }
+                        raf.readLong();
                     }
-                } else {
-                    System.out.println(raf.getFilePointer() + "-----------");
-                    recoverSearch(raf, map);
                 }
-                for (Long tid : map.keySet()) {
-                    Page[] pages = map.get(tid).get(0);
-                    Page before = pages[0];
-                    DbFile databaseFile = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                    databaseFile.writePage(before);
+
+                // undo
+                TreeMap<Long, Long> toUndo = new TreeMap<>();
+                for (Map.Entry<Long, Long> loser : losers.entrySet()) {
+                    toUndo.put(loser.getValue(), loser.getKey());
+                }
+                tidToLastLogRecord.putAll(losers);
+                while (!toUndo.isEmpty()) {
+                    Map.Entry<Long, Long> next = toUndo.pollLastEntry();
+                    long tid = next.getValue();
+                    raf.seek(next.getKey());
+                    int type = raf.readInt();
+                    raf.readLong();
+                    long undoNext = -1;
+                    if (type == CLR_RECORD) {
+                        raf.readLong();
+                        undoNext = raf.readLong();
+                    } else if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                        undoNext = raf.readLong();
+                        Change change = readChange(type);
+                        Page page = recoveryPage(pages, change.getPageId(), dirtyPages, end);
+                        page = change.apply(page, false);
+                        page.setLSN(appendCompensation(tid, change, undoNext));
+                        pages.put(page.getId(), page);
+                    }
+                    if (undoNext != -1) {
+                        toUndo.put(undoNext, tid);
+                    }
+                }
+
+                for (Page page : pages.values()) {
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    Database.getBufferPool().discardPage(page.getId());
+                }
+                for (Long tid : losers.keySet()) {
+                    appendRecord(ABORT_RECORD, tid);
+                    tidToFirstLogRecord.remove(tid);
+                    tidToLastLogRecord.remove(tid);
                 }
-                map.clear();
+                forceNow();
             }
         }
     }
 
+    /**
+     * @return the page with the given id as recovery has left it so far,
+     *         reading it from disk if recovery has not touched it yet
+     */
+    private static Page recoveryPage(Map<PageId, Page> pages, PageId pid,
+                                     Map<PageId, Long> dirtyPages, long end) throws IOException {
+        Page page = pages.get(pid);
+        if (page == null) {
+            page = diskPage(pid);
+            if (page == null) {
+                // the write that extended the file never reached the disk,
+                // so none of the logged changes to the page did either
+                page = emptyPage(pid);
+                page.setLSN(0);
+            } else {
+                // a page that is not dirty has every logged change on disk
+                Long recLsn = dirtyPages.get(pid);
+                page.setLSN(recLsn == null ? end : recLsn - 1);
+            }
+            pages.put(pid, page);
+        }
+        return page;
+    }
+
+    /**
+     * @return the page with the given id as it is on disk, or null if it
+     *         lies beyond the end of its file
+     */
+    private static Page diskPage(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return an empty page with the given id, of the class its id stands for
+     */
+    static Page emptyPage(PageId pid) throws IOException {
+        if (pid instanceof HeapPageId) {
+            return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+        }
+        BTreePageId id = (BTreePageId) pid;
+        switch (id.pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return new BTreeRootPtrPage(id, BTreeRootPtrPage.createEmptyPageData());
+            case BTreePageId.HEADER:
+                return new BTreeHeaderPage(id, BTreeHeaderPage.createEmptyPageData());
+            case BTreePageId.LEAF:
+                return new BTreeLeafPage(id, BTreePage.createEmptyPageData(), keyField(id));
+            default:
+                return new BTreeInternalPage(id, BTreePage.createEmptyPageData(), keyField(id));
+        }
+    }
+
 
     /**
      * Print out a human readable represenation of the log
      */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
+        writePending();
         long curOffset = raf.getFilePointer();
 
         raf.seek(0);
@@ -652,14 +1417,22 @@ public class LogFile {
                         while (numTransactions-- > 0) {
                             long tid = raf.readLong();
                             long firstRecord = raf.readLong();
-                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                            long lastRecord = raf.readLong();
+                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": FIRST LOG RECORD: " + firstRecord);
+                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": LAST LOG RECORD: " + lastRecord);
+                        }
+                        int numUnwritten = raf.readInt();
+                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF UNWRITTEN PAGES: " + numUnwritten);
+                        while (numUnwritten-- > 0) {
+                            System.out.println(raf.getFilePointer() + ": RECLSN: " + raf.readLong());
                         }
                         System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                         break;
                     case UPDATE_RECORD:
                         System.out.println(" (UPDATE)");
+                        System.out.println(raf.getFilePointer() + ": PREVIOUS RECORD: " + raf.readLong());
 
                         long start = raf.getFilePointer();
                         Page before = readPageData(raf);
@@ -677,6 +1450,30 @@ public class LogFile {
 
                         System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                        break;
+                    case DELTA_RECORD:
+                        System.out.println(" (DELTA)");
+                        System.out.println(raf.getFilePointer() + ": PREVIOUS RECORD: " + raf.readLong());
+
+                        long deltaStart = raf.getFilePointer();
+                        PageDelta delta = PageDelta.read(raf);
+
+                        System.out.println(deltaStart + ": page " + delta.getPageId() + ", "
+                                + delta.offsets.length + " changed ranges");
+                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
+                        break;
+                    case CLR_RECORD:
+                        System.out.println(" (CLR)");
+                        System.out.println(raf.getFilePointer() + ": PREVIOUS RECORD: " + raf.readLong());
+                        System.out.println(raf.getFilePointer() + ": UNDO NEXT: " + raf.readLong());
+
+                        int kind = raf.readInt();
+                        Change change = readChange(kind);
+                        System.out.println(raf.getFilePointer() + ": compensates page " + change.getPageId()
+                                + (kind == DELTA_RECORD ? " with changed ranges" : " with full images"));
+                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
                         break;
                 }
 
@@ -690,11 +1487,31 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Forces every log record appended so far to disk, waiting for the
+     * flusher to do so unless the caller holds this LogFile's monitor.
+     */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            forceNow();
+            return;
+        }
+        long appended;
+        synchronized (this) {
+            appended = writtenBytes + pending.position();
+        }
+        awaitDurable(appended);
+    }
+
+    /**
+     * @return the number of times the log was forced to disk
+     */
+    public synchronized long getForceCount() {
+        return forceCount;
     }
 
-    public RandomAccessFile getRaf() {
+    public synchronized RandomAccessFile getRaf() throws IOException {
+        writePending();
         return raf;
     }
 }
@@ -60,4 +60,21 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Get the LSN of this page: the log offset of the last log record of a
+     * change to it, or -1 if none has been logged since it was read.
+     * <p>
+     * The LSN is kept in memory only, since page data has no room for it;
+     * recovery works out the LSN of a page on disk from the log (see
+     * LogFile.recover()).
+     *
+     * @return the LSN of this page
+     */
+    long getLSN();
+
+    /**
+     * Set the LSN of this page.
+     */
+    void setLSN(long lsn);
 }
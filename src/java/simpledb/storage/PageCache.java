@@ -0,0 +1,114 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The pages held by the BufferPool, evicted as decided by an EvictionPolicy.
+ * <p>
+ * Lookups go straight to a ConcurrentHashMap and then tell the policy about
+ * the hit, so with a policy whose pageAccessed takes no lock (such as the
+ * default ClockPolicy) cache hits never take a lock. Adding, removing and
+ * evicting pages are synchronized on the cache.
+ */
+public class PageCache {
+
+    private final ConcurrentHashMap<PageId, Page> pages;
+    private final EvictionPolicy policy;
+
+    /**
+     * @param capacity the number of pages the cache is expected to hold; it
+     *                 is the caller's job to evict pages to stay within it
+     * @param policy   the policy choosing the pages to evict
+     */
+    public PageCache(int capacity, EvictionPolicy policy) {
+        this.pages = new ConcurrentHashMap<>(capacity * 2);
+        this.policy = policy;
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the cached page with the given id, or null if it is not cached,
+     * and tells the policy it was used.
+     */
+    public Page get(PageId pid) {
+        Page page = pages.get(pid);
+        if (page != null) {
+            policy.pageAccessed(pid);
+        }
+        return page;
+    }
+
+    /**
+     * Returns the cached page with the given id, or null if it is not cached,
+     * without telling the policy.
+     */
+    public Page peek(PageId pid) {
+        return pages.get(pid);
+    }
+
+    /**
+     * Returns true if the page with the given id is cached, without telling
+     * the policy.
+     */
+    public boolean contains(PageId pid) {
+        return pages.containsKey(pid);
+    }
+
+    /**
+     * Adds the given page to the cache, or replaces the cached version of it,
+     * in which case it counts as used.
+     */
+    public synchronized void put(PageId pid, Page page) {
+        if (pages.put(pid, page) == null) {
+            policy.pageAdded(pid);
+        } else {
+            policy.pageAccessed(pid);
+        }
+    }
+
+    /**
+     * Removes the page with the given id from the cache.
+     *
+     * @return the removed page, or null if it was not cached
+     */
+    public synchronized Page remove(PageId pid) {
+        Page page = pages.remove(pid);
+        if (page != null) {
+            policy.pageRemoved(pid);
+        }
+        return page;
+    }
+
+    /**
+     * Evicts the page the policy chooses among those accepted by evictable.
+     *
+     * @return the evicted page, or null if evictable accepts no cached page
+     */
+    public synchronized Page evict(Predicate<Page> evictable) {
+        PageId victim = policy.chooseVictim(pid -> {
+            Page page = pages.get(pid);
+            return page != null && evictable.test(page);
+        });
+        return victim == null ? null : remove(victim);
+    }
+
+    /**
+     * @return the number of cached pages
+     */
+    public int size() {
+        return pages.size();
+    }
+
+    /**
+     * @return a snapshot of the cached pages, in no particular order
+     */
+    public List<Page> pages() {
+        return new ArrayList<>(pages.values());
+    }
+}
@@ -0,0 +1,260 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import simpledb.common.DbException;
+
+/**
+ * Checksums of the pages of a table file, used to detect torn and corrupted
+ * page writes. They are kept in a file next to the table file (its name plus
+ * SUFFIX) so that page formats and capacities are unchanged, and are held in
+ * memory while the table is open, so verifying a page costs no extra I/O.
+ * <p>
+ * Entry i of the file holds two CRC32 values for page i, as ints: the
+ * checksum of the image being written last, and the one before it. A page is
+ * stamped, and the checksum file forced, before the page is written, so the
+ * checksum of every image that can reach the disk is durable first. Stamping
+ * drops the older checksum, so before the new checksum of a page that has
+ * been written since the table file was last forced is made durable, the
+ * table file is forced: the image whose checksum is dropped can then no
+ * longer be on disk. After a crash the page on disk is therefore either the
+ * new image, the previous one or a torn mix of both, and only the last fails
+ * verification. A checksum of 0 means none was recorded, for pages written
+ * before checksums were enabled, and is never checked.
+ * <p>
+ * Stamps are only written to the checksum file by force, so stamping the
+ * pages of a batch of writes first and forcing once (see
+ * DbFile.prepareWrites) costs at most one fsync of each file per batch.
+ * <p>
+ * A page that fails verification makes reads fail with a DbException, except
+ * during recovery (see setRecovering), which goes on with the page as read
+ * and rewrites it from the log.
+ */
+public class PageChecksums {
+
+    public static final String SUFFIX = ".crc";
+    private static final int ENTRY_SIZE = 8;
+
+    // time spent computing checksums of pages read, and the number of such pages
+    private static final AtomicLong verifyNanos = new AtomicLong();
+    private static final AtomicLong pagesVerified = new AtomicLong();
+
+    // set while the log is being recovered; see setRecovering
+    private static volatile boolean recovering;
+    // pages that failed verification while recovering
+    private static final AtomicLong mismatches = new AtomicLong();
+
+    /**
+     * Forces the pages written to a table file to disk.
+     */
+    public interface TableFile {
+        void force() throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final TableFile table;
+    // latest and previous checksum of each page, interleaved
+    private int[] sums;
+    // pages written since the table file was last forced; until it has been
+    // forced once, any page may be
+    private final BitSet unforced = new BitSet();
+    private boolean forcedSinceOpen;
+    // pages stamped since the checksums were last forced, and whether that
+    // dropped the checksum of an image that may not be on disk yet
+    private final BitSet stamped = new BitSet();
+    private boolean tableForceNeeded;
+
+    /**
+     * Opens the checksums of the given table file, creating an empty checksum
+     * file if there is none.
+     *
+     * @param table forces the table file, before the drop of a checksum of an
+     *              image that may not be on disk yet is made durable
+     */
+    public PageChecksums(File file, TableFile table) throws IOException {
+        this.table = table;
+        channel = new RandomAccessFile(getChecksumFile(file), "rw").getChannel();
+        int n = (int) (channel.size() / ENTRY_SIZE);
+        ByteBuffer buf = ByteBuffer.allocate(n * ENTRY_SIZE);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) == -1) {
+                break;
+            }
+        }
+        buf.flip();
+        sums = new int[Math.max(32, n * 2)];
+        buf.asIntBuffer().get(sums, 0, n * 2);
+    }
+
+    public static File getChecksumFile(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return true if the given table file has checksums
+     */
+    public static boolean exists(File file) {
+        return getChecksumFile(file).exists();
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Records the checksum of the given image of page index, which is about to
+     * be written once the checksums are forced.
+     */
+    public void stamp(int index, byte[] page) {
+        stamp(index, page, 0, page.length);
+    }
+
+    /**
+     * Records the checksum of the image of page index held in the given range
+     * of data, which is about to be written once the checksums are forced.
+     */
+    public synchronized void stamp(int index, byte[] data, int offset, int length) {
+        if (index * 2 + 1 >= sums.length) {
+            sums = Arrays.copyOf(sums, Math.max(sums.length * 2, index * 2 + 2));
+        }
+        int sum = checksum(data, offset, length);
+        if (sum == sums[index * 2]) {
+            return;
+        }
+        if (sums[index * 2 + 1] != 0 && (!forcedSinceOpen || unforced.get(index))) {
+            tableForceNeeded = true;
+        }
+        stamped.set(index);
+        sums[index * 2 + 1] = sums[index * 2];
+        sums[index * 2] = sum;
+    }
+
+    /**
+     * Checks the given image of page index, just read from disk, against the
+     * checksums recorded for it.
+     *
+     * @return false if the page has checksums and matches neither of them
+     */
+    public boolean verify(int index, byte[] page) {
+        int latest;
+        int previous;
+        synchronized (this) {
+            if (index * 2 + 1 >= sums.length) {
+                return true;
+            }
+            latest = sums[index * 2];
+            previous = sums[index * 2 + 1];
+        }
+        if (latest == 0) {
+            return true;
+        }
+        long start = System.nanoTime();
+        int sum = checksum(page, 0, page.length);
+        verifyNanos.addAndGet(System.nanoTime() - start);
+        pagesVerified.incrementAndGet();
+        return sum == latest || sum == previous;
+    }
+
+    /**
+     * Writes the checksums stamped since the last call to disk and forces
+     * them, forcing the table file first if a stamp dropped the checksum of
+     * an image that may not be on disk yet. Pages must not be written before
+     * the checksums of their new images are forced. Does nothing if no page
+     * has been stamped since the last call.
+     */
+    public synchronized void force() throws IOException {
+        if (stamped.isEmpty()) {
+            return;
+        }
+        if (tableForceNeeded) {
+            table.force();
+            unforced.clear();
+            forcedSinceOpen = true;
+            tableForceNeeded = false;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        for (int index = stamped.nextSetBit(0); index >= 0; index = stamped.nextSetBit(index + 1)) {
+            buf.clear();
+            buf.putInt(sums[index * 2]).putInt(sums[index * 2 + 1]).flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf, (long) index * ENTRY_SIZE + buf.position());
+            }
+        }
+        channel.force(false);
+        unforced.or(stamped);
+        stamped.clear();
+    }
+
+    /**
+     * Drops the checksums of every page from the given one on, for a table
+     * file cut back to its first pages pages, and forces the result.
+     */
+    public synchronized void truncate(int pages) throws IOException {
+        if (pages * 2 < sums.length) {
+            Arrays.fill(sums, pages * 2, sums.length, 0);
+        }
+        stamped.clear(pages, Integer.MAX_VALUE);
+        unforced.clear(pages, Integer.MAX_VALUE);
+        channel.truncate((long) pages * ENTRY_SIZE);
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Makes a page that fails verification be reported and read anyway,
+     * rather than fail the read, while recovering is true. Recovery reads the
+     * pages that were being written when the system crashed and redoes the
+     * logged changes to them, which rewrites a torn page in full when they
+     * start with a full image of it.
+     */
+    public static void setRecovering(boolean recovering) {
+        PageChecksums.recovering = recovering;
+    }
+
+    /**
+     * Reports that page pageNumber of the given file failed verification.
+     *
+     * @throws DbException unless recovering
+     */
+    public static void mismatch(File file, int pageNumber) throws DbException {
+        if (!recovering) {
+            throw new DbException("checksum mismatch on page " + pageNumber + " of " + file
+                    + ": the page is torn or corrupted");
+        }
+        mismatches.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pages that failed verification while recovering
+     */
+    public static long getRecoveryMismatches() {
+        return mismatches.get();
+    }
+
+    /**
+     * @return the total time spent verifying page checksums, in nanoseconds
+     */
+    public static long getVerifyNanos() {
+        return verifyNanos.get();
+    }
+
+    /**
+     * @return the number of pages whose checksums have been verified
+     */
+    public static long getPagesVerified() {
+        return pagesVerified.get();
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The byte ranges in which two versions of a page's data differ, with the
+ * bytes of both versions in each range. This is what a DELTA record of the
+ * LogFile holds instead of two full page images.
+ * <p>
+ * Applying a delta sets every range to the bytes of one of the versions and
+ * leaves the rest of the page alone, so applying it twice or to a page that
+ * already has those bytes does no harm. Since a page is only ever changed by
+ * the transaction holding its exclusive lock, the bytes outside the ranges
+ * are the same in both versions of every page a delta is applied to.
+ */
+class PageDelta {
+    /** Ranges closer than this are logged as one, which takes fewer bytes. */
+    static final int MAX_GAP = 4;
+
+    final byte tag;
+    final int[] pageInfo;
+    final int[] offsets;
+    final byte[][] before;
+    final byte[][] after;
+
+    PageDelta(byte tag, int[] pageInfo, int[] offsets, byte[][] before, byte[][] after) {
+        this.tag = tag;
+        this.pageInfo = pageInfo;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta turning beforeData into afterData, the data of a page
+     *         of the class the given tag stands for
+     */
+    static PageDelta diff(byte tag, PageId pid, byte[] beforeData, byte[] afterData) {
+        List<int[]> ranges = new ArrayList<>();
+        int n = Math.min(beforeData.length, afterData.length);
+        int i = 0;
+        while (i < n) {
+            if (beforeData[i] == afterData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < n && j - end < MAX_GAP; j++) {
+                if (beforeData[j] != afterData[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = new byte[end - start];
+            after[r] = new byte[end - start];
+            System.arraycopy(beforeData, start, before[r], 0, end - start);
+            System.arraycopy(afterData, start, after[r], 0, end - start);
+        }
+        return new PageDelta(tag, pid.serialize(), offsets, before, after);
+    }
+
+    PageId getPageId() {
+        return LogFile.newPageId(tag, pageInfo);
+    }
+
+    /**
+     * @return the number of bytes write takes
+     */
+    int size() {
+        int size = 1 + 4 + 4 * pageInfo.length + 4;
+        for (byte[] range : before) {
+            size += 4 + 4 + 2 * range.length;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the delta as: page tag, page id, range count, and for each range
+     * its offset, length, old bytes and new bytes.
+     */
+    void write(ByteBuffer buf) {
+        buf.put(tag);
+        buf.putInt(pageInfo.length);
+        for (int j : pageInfo) {
+            buf.putInt(j);
+        }
+        buf.putInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            buf.putInt(offsets[r]);
+            buf.putInt(before[r].length);
+            buf.put(before[r]);
+            buf.put(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        int[] pageInfo = new int[in.readInt()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = in.readInt();
+        }
+        int count = in.readInt();
+        int[] offsets = new int[count];
+        byte[][] before = new byte[count][];
+        byte[][] after = new byte[count][];
+        for (int r = 0; r < count; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(tag, pageInfo, offsets, before, after);
+    }
+
+    /**
+     * @return the delta that undoes this one
+     */
+    PageDelta inverse() {
+        return new PageDelta(tag, pageInfo, offsets, after, before);
+    }
+
+    /**
+     * @param page the page to apply the delta to
+     * @param redo true to set the ranges to their new bytes, false to set
+     *             them to their old ones
+     * @return a copy of the page with the delta applied
+     */
+    Page apply(Page page, boolean redo) throws IOException {
+        byte[] data = page.getPageData();
+        byte[][] bytes = redo ? after : before;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(bytes[r], 0, data, offsets[r], bytes[r].length);
+        }
+        return LogFile.newPage(tag, pageInfo, data);
+    }
+}
@@ -0,0 +1,53 @@
+package simpledb.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small private ring of page frames used by one large sequential scan, so
+ * that the scan recycles its own frames instead of filling the shared
+ * BufferPool with pages it will not read again. Pages the scan finds in the
+ * shared pool are still taken from there; pages it has to read from disk
+ * go into the ring, where each replaces the oldest page once the ring is
+ * full.
+ * <p>
+ * A ring belongs to a single scan and is not thread-safe.
+ *
+ * @see BufferPool#setScanRingPages
+ */
+public class ScanRing {
+
+    /** Pages in insertion order, dropping the oldest beyond capacity. */
+    private static class Frames extends LinkedHashMap<PageId, Page> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Frames(int capacity) {
+            super(capacity * 2);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PageId, Page> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Frames frames;
+
+    /**
+     * @param capacity the number of pages the ring holds
+     */
+    public ScanRing(int capacity) {
+        frames = new Frames(capacity);
+    }
+
+    Page get(PageId pid) {
+        return frames.get(pid);
+    }
+
+    void put(PageId pid, Page page) {
+        frames.put(pid, page);
+    }
+}
@@ -15,6 +15,8 @@ public class StringField implements Field {
 	private final String value;
 	private final int maxSize;
 
+	private final Type type;
+
 	public String getValue() {
 		return value;
 	}
@@ -28,7 +30,23 @@ public class StringField implements Field {
 	 *            The maximum size of this string
 	 */
 	public StringField(String s, int maxSize) {
+		this(s, maxSize, Type.STRING_TYPE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param s
+	 *            The value of this field.
+	 * @param maxSize
+	 *            The maximum size of this string
+	 * @param type
+	 *            The type of this field, either STRING_TYPE or
+	 *            VAR_STRING_TYPE
+	 */
+	public StringField(String s, int maxSize, Type type) {
 		this.maxSize = maxSize;
+		this.type = type;
 
 		if (s.length() > maxSize)
 			value = s.substring(0, maxSize);
@@ -52,7 +70,8 @@ public class StringField implements Field {
 	/**
 	 * Write this string to dos. Always writes maxSize + 4 bytes to the passed
 	 * in dos. First four bytes are string length, next bytes are string, with
-	 * remainder padded with 0 to maxSize.
+	 * remainder padded with 0 to maxSize. This is the fixed-length format of
+	 * both string types; see {@link Type#writeCompact} for the unpadded one.
 	 * 
 	 * @param dos
 	 *            Where the string is written
@@ -113,6 +132,6 @@ public class StringField implements Field {
 	 */
 	public Type getType() {
 
-		return Type.STRING_TYPE;
+		return type;
 	}
 }
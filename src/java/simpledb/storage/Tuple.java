@@ -1,5 +1,7 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,6 +26,11 @@ public class Tuple implements Serializable {
     private TupleDesc tupleDesc;
     private RecordId recordId;
     private List<Field> fieldList ;
+    // page and slot this tuple was read from; fields that have not been set are
+    // decoded from the page on first access. Holding the page keeps all of
+    // it in memory, so operators that keep tuples call detach()
+    private transient HeapPage page;
+    private int slot;
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -37,6 +44,37 @@ public class Tuple implements Serializable {
         fieldList  = new ArrayList<>(td.numFields());
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from the given slot of a
+     * page, as they are accessed.
+     */
+    Tuple(TupleDesc td, HeapPage page, int slot) {
+        tupleDesc = td;
+        fieldList = Arrays.asList(new Field[td.numFields()]);
+        this.page = page;
+        this.slot = slot;
+    }
+
+    /**
+     * Decodes every field that has not been accessed yet and lets go of the
+     * page this tuple was read from, so that keeping the tuple no longer
+     * keeps the whole page in memory. Operators that hold on to the tuples
+     * they read, rather than pass them on one at a time, call this on each.
+     */
+    public void detach() {
+        if (page != null) {
+            for (int i = 0; i < fieldList.size(); i++) {
+                getField(i);
+            }
+            page = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        detach();
+        out.defaultWriteObject();
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -93,7 +131,12 @@ public class Tuple implements Serializable {
         if(i<0 || i>= fieldList.size()){
             return null;
         }
-        return fieldList.get(i);
+        Field f = fieldList.get(i);
+        if (f == null && page != null) {
+            f = page.decodeField(slot, i);
+            fieldList.set(i, f);
+        }
+        return f;
     }
 
     /**
@@ -106,6 +149,7 @@ public class Tuple implements Serializable {
      */
     @Override
     public String toString() {
+        detach();
         return "Tuple{" +
                 "tupleDesc=" + tupleDesc +
                 ", fieldList=" + fieldList +
@@ -119,6 +163,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        detach();
         return fieldList.iterator();
     }
 
@@ -133,6 +178,8 @@ public class Tuple implements Serializable {
 
     public boolean equals(Object o) {
         if(o instanceof Tuple) {
+            detach();
+            ((Tuple) o).detach();
             if(((Tuple) o).tupleDesc.equals(tupleDesc) && ((Tuple) o).recordId.equals(recordId) && ((Tuple) o).fieldList.equals(fieldList)){
                 return true;
             }
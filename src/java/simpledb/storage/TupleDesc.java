@@ -172,7 +172,9 @@ public class TupleDesc implements Serializable {
 
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
-     *         Note that tuples from a given TupleDesc are of a fixed size.
+     *         Note that tuples from a given TupleDesc are of a fixed size,
+     *         unless the TupleDesc has variable-length fields, in which case
+     *         this is the maximum size of a tuple.
      */
     public int getSize() {
         // some code goes here
@@ -184,6 +186,19 @@ public class TupleDesc implements Serializable {
         return res;
     }
 
+    /**
+     * @return true if every field of this TupleDesc has a fixed length, so
+     *         that all its tuples have the same size.
+     */
+    public boolean isFixedLength() {
+        for (TDItem item : tupleDescList) {
+            if (!item.getFieldType().isFixedLength()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,95 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha), which keeps a large scan from pushing
+ * the pages that are reused out of the cache.
+ * <p>
+ * A page seen for the first time goes into a small FIFO queue, where hits do
+ * not move it. When it is evicted from there its id is remembered in a ghost
+ * queue, and only a page read again while its id is still remembered goes
+ * into the main LRU queue. Victims come from the FIFO queue while it holds
+ * more than a quarter of the pool, so a scan only ever cycles pages through
+ * that queue and leaves the main queue alone.
+ * <p>
+ * The queues are ordinary linked structures, so every method, including the
+ * one called on cache hits, is synchronized.
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+    // pages seen once, oldest first
+    private final LinkedHashSet<PageId> in = new LinkedHashSet<>();
+    // ids of pages recently evicted from in, oldest first
+    private final LinkedHashSet<PageId> out = new LinkedHashSet<>();
+    // pages seen again after leaving in, least recently used first
+    private final Map<PageId, Boolean> hot = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity the number of pages in the BufferPool
+     */
+    public TwoQueuePolicy(int capacity) {
+        this.maxIn = Math.max(1, capacity / 4);
+        this.maxOut = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public synchronized void pageAdded(PageId pid) {
+        if (out.remove(pid)) {
+            hot.put(pid, Boolean.TRUE);
+        } else {
+            in.add(pid);
+        }
+    }
+
+    @Override
+    public synchronized void pageAccessed(PageId pid) {
+        // moves the page to the most recently used end of the main queue
+        hot.get(pid);
+    }
+
+    @Override
+    public synchronized void pageRemoved(PageId pid) {
+        if (!in.remove(pid)) {
+            hot.remove(pid);
+        }
+    }
+
+    @Override
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (in.size() > maxIn || hot.isEmpty()) {
+            victim = first(in, evictable);
+        }
+        if (victim == null) {
+            victim = first(hot.keySet(), evictable);
+        }
+        if (victim == null) {
+            victim = first(in, evictable);
+        }
+        if (victim != null && in.contains(victim)) {
+            out.add(victim);
+            if (out.size() > maxOut) {
+                Iterator<PageId> it = out.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return victim;
+    }
+
+    private static PageId first(Iterable<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -5,95 +5,623 @@ import simpledb.storage.PageId;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Multi-granularity locks on tables and pages. A table is locked in any of
+ * the LockModes, a page in S or X, and every locked table or page has a
+ * LockQueue holding the locks granted on it and the requests waiting for it.
+ * A request that cannot be granted right away parks its thread until a
+ * release hands it the lock or its timeout expires, so a blocked transaction
+ * uses no CPU.
+ * <p>
+ * Locking a page first takes the matching intention lock, IS or IX, on its
+ * table, unless the transaction's table lock already covers the page: S and
+ * SIX cover reading every page of the table and X covers writing them too.
+ * Once a transaction holds escalationThreshold page locks on a table, its
+ * next page request asks for S or X on the whole table instead, and from
+ * then on takes no page locks on it the table lock covers. The escalation
+ * only happens if the table lock can be granted right away; otherwise the
+ * transaction carries on locking pages, so escalating never makes it wait.
+ * <p>
+ * The lock table is split into STRIPES stripes by the hash of the locked
+ * resource, each a map of its own guarded by its own monitor, so requests
+ * for pages in different stripes never contend. The tables and pages each
+ * transaction holds locks on are tracked as well, along with the modes of
+ * its table locks, so releasing all of them touches only those resources
+ * and a page request only goes to its table's stripe the first time the
+ * transaction touches the table.
+ * <p>
+ * Waiting requests are granted in FIFO order, except that a transaction
+ * strengthening a lock it holds, such as upgrading a shared lock to an
+ * exclusive one, goes ahead of every request that is not an upgrade, since
+ * it already holds the resource. New requests queue behind waiting ones even
+ * when they are compatible with the granted locks, so a stream of readers
+ * cannot starve a writer.
+ * <p>
+ * Deadlocks are detected as soon as they form: every time a request has to
+ * wait, the waits-for graph of the blocked requests is searched for a cycle
+ * through the requesting transaction. If there is one, the youngest
+ * transaction on it is aborted right away, so it has likely done the least
+ * work, and a transaction that restarts after an abort keeps its place
+ * behind the older ones instead of starving them. The victim's waiting
+ * requests leave their queues and the graph as soon as it is chosen, rather
+ * than when its thread wakes up, so the requests behind them are granted
+ * and stop waiting for it at once. The graph has a monitor of its own, only
+ * ever taken after a stripe's monitor, and the edges of the requests waiting
+ * on a resource are updated whenever its queue changes.
+ */
 public class LockManager {
-    private Map<Integer, List<Lock>> map; //锁表
+    private static final int STRIPES = 64;
 
-    public LockManager() {
-        this.map = new ConcurrentHashMap<>();
+    /** The default number of page locks on a table a transaction takes before escalating. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    // table locks are keyed by the Integer id of the table, page locks by PageId
+    private final Stripe[] stripes; //锁表
+    private final ConcurrentHashMap<TransactionId, TransactionLocks> lockSets = new ConcurrentHashMap<>();
+    // the transactions each waiting request waits for; also the graph's monitor
+    private final Map<Waiter, Set<TransactionId>> waitsFor = new HashMap<>();
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
 
+    /** One stripe of the lock table. */
+    private static class Stripe {
+        final Map<Object, LockQueue> queues = new HashMap<>();
     }
 
-    public synchronized Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions) {
-        Integer pid = pageId.getPageNumber();
-        Lock lock = new Lock(permissions, tid);
-        List<Lock> locks = map.get(pid);
-        if (locks == null) {
-            locks = new ArrayList<>();
-            locks.add(lock);
-            map.put(pid, locks);
+    /** The locks granted on a table or page and the requests waiting for it. */
+    private static class LockQueue {
+        final Object resource;
+        final List<Lock> locks = new ArrayList<>();
+        final LinkedList<Waiter> waiters = new LinkedList<>();
+
+        LockQueue(Object resource) {
+            this.resource = resource;
+        }
+
+        Lock find(TransactionId tid) {
+            for (Lock lock : locks) {
+                if (lock.getTransactionId().equals(tid)) {
+                    return lock;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if tid may hold a lock in the given mode next to the
+         *         locks other transactions have been granted
+         */
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Lock lock : locks) {
+                if (!lock.getTransactionId().equals(tid) && !mode.isCompatibleWith(lock.getMode())) {
+                    return false;
+                }
+            }
             return true;
         }
-        if (locks.size() == 1) {  //只有一个事务占有锁
-            Lock firstLock = locks.get(0);
-            if (firstLock.getTransactionId().equals(tid)) {
-                if (firstLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_WRITE)) {
-                    firstLock.setPermissions(Permissions.READ_WRITE); //锁升级
+    }
+
+    /** The tables and pages a transaction holds locks on. */
+    private static class TransactionLocks {
+        private final Set<Object> resources = new HashSet<>();
+        private final Map<Integer, Integer> pageCounts = new HashMap<>();
+        private final Map<Integer, LockMode> tableModes = new HashMap<>();
+
+        synchronized void granted(Object resource, LockMode mode) {
+            if (resource instanceof PageId) {
+                if (resources.add(resource)) {
+                    pageCounts.merge(((PageId) resource).getTableId(), 1, Integer::sum);
                 }
-                return true;
             } else {
-                if (firstLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_ONLY)) {
-                    locks.add(lock);
+                resources.add(resource);
+                tableModes.put((Integer) resource, mode);
+            }
+        }
+
+        synchronized void released(Object resource) {
+            if (resources.remove(resource) && resource instanceof PageId) {
+                pageCounts.computeIfPresent(((PageId) resource).getTableId(), (k, n) -> n == 1 ? null : n - 1);
+            }
+        }
+
+        synchronized LockMode tableMode(int tableId) {
+            return tableModes.get(tableId);
+        }
+
+        synchronized int pageCount(int tableId) {
+            return pageCounts.getOrDefault(tableId, 0);
+        }
+
+        synchronized Object[] resources() {
+            return resources.toArray();
+        }
+
+        synchronized Set<PageId> pages() {
+            Set<PageId> pages = new HashSet<>();
+            for (Object resource : resources) {
+                if (resource instanceof PageId) {
+                    pages.add((PageId) resource);
+                }
+            }
+            return pages;
+        }
+    }
+
+    /** A request parked until it is granted. */
+    private static class Waiter {
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean upgrade;
+        final LockQueue queue;
+        final Thread thread = Thread.currentThread();
+        // set under the monitor of the queue's stripe
+        boolean granted;
+        // set under the graph's monitor
+        volatile boolean aborted;
+
+        Waiter(TransactionId tid, LockMode mode, boolean upgrade, LockQueue queue) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.queue = queue;
+        }
+
+        /**
+         * @return true if this request cannot be granted alongside a lock of
+         *         tid in the given mode
+         */
+        boolean conflicts(TransactionId tid, LockMode mode) {
+            return !tid.equals(this.tid) && !mode.isCompatibleWith(this.mode);
+        }
+
+        /**
+         * @return the transactions this request waits for: those holding
+         *         conflicting locks and those with conflicting requests
+         *         queued ahead of it
+         */
+        Set<TransactionId> waitsFor() {
+            Set<TransactionId> tids = new HashSet<>();
+            for (Lock lock : queue.locks) {
+                if (conflicts(lock.getTransactionId(), lock.getMode())) {
+                    tids.add(lock.getTransactionId());
+                }
+            }
+            for (Waiter ahead : queue.waiters) {
+                if (ahead == this) {
+                    break;
+                }
+                if (!ahead.aborted && conflicts(ahead.tid, ahead.mode)) {
+                    tids.add(ahead.tid);
+                }
+            }
+            return tids;
+        }
+    }
+
+    public LockManager() {
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripeFor(Object resource) {
+        int h = resource.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Sets the number of page locks on one table a transaction may hold
+     * before its page requests on the table escalate to a table lock.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * @return the number of times a transaction's page locks on a table were
+     *         escalated to a table lock
+     */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /**
+     * Acquires a lock on the given page for tid, along with the intention
+     * lock on its table, waiting up to timeoutMillis for each of them. Does
+     * nothing if tid holds a table lock covering the page, and locks the
+     * whole table instead if tid holds escalationThreshold page locks on it
+     * and the table lock can be granted right away.
+     *
+     * @throws TransactionAbortedException if a lock was not granted in time,
+     *         or tid was chosen to break a deadlock while waiting
+     */
+    public void acquireLock(TransactionId tid, PageId pageId, Permissions permissions, long timeoutMillis)
+            throws TransactionAbortedException {
+        LockMode mode = LockMode.of(permissions);
+        Integer table = pageId.getTableId();
+        TransactionLocks held = lockSets.get(tid);
+        if (held != null) {
+            LockMode tableMode = held.tableMode(table);
+            if (tableMode != null && tableMode.covers(mode)) {
+                return;
+            }
+            if (held.pageCount(table) >= escalationThreshold && tryLock(tid, table, mode)) {
+                escalations.incrementAndGet();
+                return;
+            }
+            if (tableMode == null || !tableMode.covers(mode.intention())) {
+                lock(tid, table, mode.intention(), timeoutMillis);
+            }
+        } else {
+            lock(tid, table, mode.intention(), timeoutMillis);
+        }
+        lock(tid, pageId, mode, timeoutMillis);
+    }
+
+    /**
+     * Acquires a lock on the given table for tid, waiting up to
+     * timeoutMillis for conflicting locks to be released. If tid holds a
+     * lock on the table already it ends up holding the weakest mode covering
+     * both.
+     *
+     * @throws TransactionAbortedException if the lock was not granted in time,
+     *         or tid was chosen to break a deadlock while waiting
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode, long timeoutMillis)
+            throws TransactionAbortedException {
+        lock(tid, tableId, mode, timeoutMillis);
+    }
+
+    /**
+     * @return the mode of tid's lock on the given table, or null if it holds
+     *         none
+     */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        TransactionLocks held = lockSets.get(tid);
+        return held == null ? null : held.tableMode(tableId);
+    }
+
+    private TransactionLocks locksOf(TransactionId tid) {
+        return lockSets.computeIfAbsent(tid, k -> new TransactionLocks());
+    }
+
+    /**
+     * Grants tid a lock in the given mode on the resource if that is possible
+     * without waiting.
+     *
+     * @return true if tid now holds a lock covering the given mode
+     */
+    private boolean tryLock(TransactionId tid, Object resource, LockMode mode) {
+        Stripe stripe = stripeFor(resource);
+        synchronized (stripe) {
+            LockQueue queue = stripe.queues.get(resource);
+            if (queue == null) {
+                queue = new LockQueue(resource);
+            }
+            Lock held = queue.find(tid);
+            if (held != null) {
+                if (held.getMode().covers(mode)) {
                     return true;
                 }
+                LockMode target = held.getMode().combine(mode);
+                if (!queue.compatible(tid, target)) {
+                    return false;
+                }
+                held.setMode(target);
+                locksOf(tid).granted(resource, target);
+                return true;
+            }
+            if (!queue.waiters.isEmpty() || !queue.compatible(tid, mode)) {
                 return false;
             }
+            queue.locks.add(new Lock(mode, tid));
+            stripe.queues.put(resource, queue);
+            locksOf(tid).granted(resource, mode);
+            return true;
         }
-        //list中有多个事务则说明全是共享锁
-        if (lock.getPermissions().equals(Permissions.READ_WRITE)) {
-            return false;
+    }
+
+    /**
+     * Acquires a lock in the given mode on the resource for tid, waiting up
+     * to timeoutMillis for conflicting locks to be released.
+     */
+    private void lock(TransactionId tid, Object resource, LockMode mode, long timeoutMillis)
+            throws TransactionAbortedException {
+        Stripe stripe = stripeFor(resource);
+        Waiter waiter;
+        synchronized (stripe) {
+            LockQueue queue = stripe.queues.computeIfAbsent(resource, LockQueue::new);
+            Lock held = queue.find(tid);
+            if (held != null) {
+                if (held.getMode().covers(mode)) {
+                    return;
+                }
+                LockMode target = held.getMode().combine(mode);
+                if (queue.compatible(tid, target)) {
+                    held.setMode(target); //锁升级
+                    locksOf(tid).granted(resource, target);
+                    return;
+                }
+                // upgrades wait ahead of every request that is not an upgrade
+                waiter = new Waiter(tid, target, true, queue);
+                ListIterator<Waiter> it = queue.waiters.listIterator();
+                while (it.hasNext()) {
+                    if (!it.next().upgrade) {
+                        it.previous();
+                        break;
+                    }
+                }
+                it.add(waiter);
+            } else {
+                if (queue.waiters.isEmpty() && queue.compatible(tid, mode)) {
+                    queue.locks.add(new Lock(mode, tid));
+                    locksOf(tid).granted(resource, mode);
+                    return;
+                }
+                waiter = new Waiter(tid, mode, false, queue);
+                queue.waiters.addLast(waiter);
+            }
+            updateWaitsFor(queue);
         }
-        //同一个事务重复获取读锁，不要进入列表！
-        for (Lock lock1 : locks) {
-            if (lock1.getTransactionId().equals(tid)) {
-                return true;
+        resolveDeadlocks(tid);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true) {
+                synchronized (stripe) {
+                    if (waiter.granted) {
+                        return;
+                    }
+                    if (waiter.aborted || deadline - System.nanoTime() <= 0) {
+                        throw new TransactionAbortedException();
+                    }
+                }
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+            }
+        } finally {
+            synchronized (stripe) {
+                leaveQueue(stripe, waiter);
             }
         }
-        locks.add(lock);
-        return true;
     }
 
+    /**
+     * Takes a request that has not been granted out of its queue and the
+     * waits-for graph, and grants the requests behind it that no longer have
+     * to wait. Does nothing if the request has left the queue already. Must
+     * be called holding the monitor of the queue's stripe.
+     */
+    private void leaveQueue(Stripe stripe, Waiter waiter) {
+        if (waiter.granted || !waiter.queue.waiters.remove(waiter)) {
+            return;
+        }
+        synchronized (waitsFor) {
+            waitsFor.remove(waiter);
+        }
+        grantWaiters(stripe, waiter.queue);
+    }
+
+    /**
+     * Grants the requests at the head of the given queue for as long as
+     * they are compatible with the locks held, and wakes their threads. The
+     * requests left waiting get their waits-for edges refreshed, since the
+     * lock or request that let this be called is gone even if none could
+     * be granted. Must be called holding the monitor of the queue's stripe.
+     */
+    private void grantWaiters(Stripe stripe, LockQueue queue) {
+        while (!queue.waiters.isEmpty()) {
+            Waiter waiter = queue.waiters.getFirst();
+            if (!queue.compatible(waiter.tid, waiter.mode)) {
+                break;
+            }
+            Lock held = queue.find(waiter.tid);
+            if (held != null) {
+                held.setMode(held.getMode().combine(waiter.mode));
+                locksOf(waiter.tid).granted(queue.resource, held.getMode());
+            } else {
+                queue.locks.add(new Lock(waiter.mode, waiter.tid));
+                locksOf(waiter.tid).granted(queue.resource, waiter.mode);
+            }
+            queue.waiters.removeFirst();
+            synchronized (waitsFor) {
+                waitsFor.remove(waiter);
+            }
+            waiter.granted = true;
+            LockSupport.unpark(waiter.thread);
+        }
+        if (queue.locks.isEmpty() && queue.waiters.isEmpty()) {
+            stripe.queues.remove(queue.resource);
+        } else {
+            updateWaitsFor(queue);
+        }
+    }
 
-    public synchronized void releaseLock(TransactionId transactionId, PageId pageId) {
-        List<Lock> locks = map.get(pageId.getPageNumber());
-        for (int i = 0; i < locks.size(); i++) {
-            Lock lock = locks.get(i);
-            // release lock
-            if (lock.getTransactionId().equals(transactionId)) {
-                locks.remove(lock);
-                if (locks.size() == 0) {
-                    map.remove(pageId.getPageNumber());
+    /**
+     * Records in the waits-for graph whom each request waiting in the given
+     * queue now waits for. Must be called holding the monitor of the queue's
+     * stripe.
+     */
+    private void updateWaitsFor(LockQueue queue) {
+        synchronized (waitsFor) {
+            for (Waiter w : queue.waiters) {
+                if (!w.aborted) {
+                    waitsFor.put(w, w.waitsFor());
                 }
-                return;
             }
         }
     }
 
-    public synchronized void releaseAllLock(TransactionId transactionId) {
-        for (Integer k : map.keySet()) {
-            List<Lock> locks = map.get(k);
-            for (int i = 0; i < locks.size(); i++) {
-                Lock lock = locks.get(i);
-                // release lock
-                if (lock.getTransactionId().equals(transactionId)) {
-                    locks.remove(lock);
-                    if (locks.size() == 0) {
-                        map.remove(k);
+    /**
+     * Aborts the youngest transaction on each cycle of the waits-for graph
+     * that goes through tid, until there is none left. Any cycle must go
+     * through tid, since the graph was free of cycles before its request
+     * started waiting. The victims' requests are then taken out of their
+     * queues, and their threads woken to throw TransactionAbortedException.
+     * Must be called holding no stripe's monitor.
+     */
+    private void resolveDeadlocks(TransactionId tid) {
+        List<Waiter> aborted = new ArrayList<>();
+        try {
+            findVictims(tid, aborted);
+        } finally {
+            for (Waiter w : aborted) {
+                Stripe stripe = stripeFor(w.queue.resource);
+                synchronized (stripe) {
+                    leaveQueue(stripe, w);
+                }
+                LockSupport.unpark(w.thread);
+            }
+        }
+    }
+
+    /**
+     * Aborts the waiting requests of the youngest transaction on each cycle
+     * through tid until there is none left, adding them to aborted.
+     */
+    private void findVictims(TransactionId tid, List<Waiter> aborted) {
+        synchronized (waitsFor) {
+            while (true) {
+                Map<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+                for (Map.Entry<Waiter, Set<TransactionId>> e : waitsFor.entrySet()) {
+                    graph.computeIfAbsent(e.getKey().tid, k -> new HashSet<>()).addAll(e.getValue());
+                }
+                List<TransactionId> cycle = findCycle(graph, tid, tid, new ArrayList<>(), new HashSet<>());
+                if (cycle == null) {
+                    return;
+                }
+                TransactionId victim = tid;
+                for (TransactionId t : cycle) {
+                    if (t.getId() > victim.getId()) {
+                        victim = t;
                     }
-                    break;
+                }
+                deadlocks.incrementAndGet();
+                abortWaiters(victim, aborted);
+                if (victim.equals(tid)) {
+                    return;
                 }
             }
         }
     }
 
-    public synchronized Boolean holdsLock(TransactionId tid, PageId p) {
-        List<Lock> locks = map.get(p.getPageNumber());
-        for (int i = 0; i < locks.size(); i++) {
-            Lock lock = locks.get(i);
-            if (lock.getTransactionId().equals(tid)) {
-                return true;
+    /**
+     * Searches the waits-for graph depth first for a path from node back to
+     * start.
+     *
+     * @return the transactions on the path, or null if there is none
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph,
+            TransactionId start, TransactionId node, List<TransactionId> path, Set<TransactionId> visited) {
+        path.add(node);
+        for (TransactionId next : graph.getOrDefault(node, Collections.emptySet())) {
+            if (next.equals(start)) {
+                return path;
+            }
+            if (visited.add(next)) {
+                List<TransactionId> cycle = findCycle(graph, start, next, path, visited);
+                if (cycle != null) {
+                    return cycle;
+                }
             }
         }
-        return false;
+        path.remove(path.size() - 1);
+        return null;
+    }
+
+    /**
+     * Takes every waiting request of tid out of the waits-for graph and marks
+     * it aborted, adding it to aborted; its thread throws
+     * TransactionAbortedException unless the request was granted meanwhile.
+     * Must be called holding the graph's monitor.
+     */
+    private void abortWaiters(TransactionId tid, List<Waiter> aborted) {
+        for (Iterator<Waiter> it = waitsFor.keySet().iterator(); it.hasNext(); ) {
+            Waiter w = it.next();
+            if (w.tid.equals(tid)) {
+                it.remove();
+                w.aborted = true;
+                aborted.add(w);
+            }
+        }
+    }
+
+    /**
+     * @return the number of deadlocks detected, each resolved by aborting a
+     *         transaction
+     */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * Releases tid's lock on the given page. Its lock on the page's table is
+     * kept.
+     */
+    public void releaseLock(TransactionId transactionId, PageId pageId) {
+        TransactionLocks held = lockSets.get(transactionId);
+        if (held != null) {
+            held.released(pageId);
+        }
+        unlock(transactionId, pageId);
+    }
+
+    public void releaseAllLock(TransactionId transactionId) {
+        TransactionLocks held = lockSets.remove(transactionId);
+        if (held == null) {
+            return;
+        }
+        for (Object resource : held.resources()) {
+            unlock(transactionId, resource);
+        }
+    }
+
+    private void unlock(TransactionId transactionId, Object resource) {
+        Stripe stripe = stripeFor(resource);
+        synchronized (stripe) {
+            LockQueue queue = stripe.queues.get(resource);
+            if (queue == null) {
+                return;
+            }
+            Lock lock = queue.find(transactionId);
+            if (lock != null) {
+                queue.locks.remove(lock);
+                grantWaiters(stripe, queue);
+            }
+        }
+    }
+
+    /**
+     * @return true if tid may read the given page: it holds a lock on the
+     *         page, or a table lock covering it
+     */
+    public Boolean holdsLock(TransactionId tid, PageId p) {
+        LockMode tableMode = getTableLockMode(tid, p.getTableId());
+        if (tableMode != null && tableMode.covers(LockMode.S)) {
+            return true;
+        }
+        Stripe stripe = stripeFor(p);
+        synchronized (stripe) {
+            LockQueue queue = stripe.queues.get(p);
+            return queue != null && queue.find(tid) != null;
+        }
+    }
+
+    /**
+     * @return a snapshot of the pages tid holds a page lock on, which leaves
+     *         out the pages it only accessed under a table lock
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TransactionLocks held = lockSets.get(tid);
+        return held == null ? new HashSet<>() : held.pages();
     }
 }
@@ -0,0 +1,85 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+
+/**
+ * The modes of a multi-granularity lock. Tables are locked in any of them,
+ * pages only in S or X: a transaction locking a page first takes the
+ * matching intention lock (IS or IX) on its table, unless its table lock
+ * already covers the page.
+ */
+public enum LockMode {
+    /** intention to take S locks on pages of the table */
+    IS,
+    /** intention to take X locks on pages of the table */
+    IX,
+    /** shared */
+    S,
+    /** shared, with the intention to take X locks on pages of the table */
+    SIX,
+    /** exclusive */
+    X;
+
+    private static final boolean[][] COMPATIBLE = {
+            //            IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+    };
+
+    public static LockMode of(Permissions permissions) {
+        return permissions.equals(Permissions.READ_WRITE) ? X : S;
+    }
+
+    /**
+     * @return true if locks of this mode and the given mode may be held on
+     *         the same resource by different transactions
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding this mode grants everything the given mode does
+     */
+    public boolean covers(LockMode other) {
+        switch (this) {
+        case X:
+            return true;
+        case SIX:
+            return other != X;
+        case S:
+            return other == S || other == IS;
+        case IX:
+            return other == IX || other == IS;
+        default:
+            return other == IS;
+        }
+    }
+
+    /**
+     * @return the weakest mode covering both this mode and the given one,
+     *         which is what a transaction holding one of them and asking for
+     *         the other ends up holding
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // only S and IX (or SIX and something it does not cover) are left
+        return other == X ? X : SIX;
+    }
+
+    /**
+     * @return the intention mode to take on a table before locking one of
+     *         its pages in this mode
+     */
+    public LockMode intention() {
+        return this == S || this == IS ? IS : IX;
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
@@ -8,6 +9,7 @@ import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.execution.Predicate.Op;
 
+import java.io.RandomAccessFile;
 import java.util.*;
 
 import org.junit.After;
@@ -53,6 +55,33 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		assertTrue(id != other.getId());
 	}
 
+	/**
+	 * Unit test for BTreeFile.setChecksummed() detecting a corrupted page
+	 */
+	@Test
+	public void checksums() throws Exception {
+		f.setChecksummed(true);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+		BTreePageId rootId = rootPtr.getRootId();
+		assertNotNull(f.readPage(rootId));
+
+		long offset = BTreeRootPtrPage.getPageSize()
+				+ (long) (rootId.getPageNumber() - 1) * BufferPool.getPageSize() + 100;
+		try (RandomAccessFile raf = new RandomAccessFile(f.getFile(), "rw")) {
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b ^ 0xff);
+		}
+		try {
+			f.readPage(rootId);
+			fail("expected a checksum mismatch");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof DbException);
+		}
+		f.setChecksummed(false);
+	}
+
 	/**
 	 * Unit test for BTreeFile.getTupleDesc()
 	 */
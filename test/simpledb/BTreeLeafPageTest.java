@@ -12,7 +12,9 @@ import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
@@ -347,6 +349,34 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage with a variable-length key field, which is
+	 * stored in a fixed-size slot like STRING_TYPE
+	 */
+	@Test public void addTupleVariableLength() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.VAR_STRING_TYPE, Type.INT_TYPE});
+		BTreePageId varPid = new BTreePageId(-2, 1, BTreePageId.LEAF);
+		Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+		BTreeLeafPage page = new BTreeLeafPage(varPid, BTreeLeafPage.createEmptyPageData(), 0);
+
+		for (int i = 9; i >= 0; i--) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField("key" + i, Type.STRING_LEN, Type.VAR_STRING_TYPE));
+			t.setField(1, new IntField(i));
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage copy = new BTreeLeafPage(varPid, page.getPageData(), 0);
+		Iterator<Tuple> it = copy.iterator();
+		for (int i = 0; i < 10; i++) {
+			Tuple t = it.next();
+			assertEquals(Type.VAR_STRING_TYPE, t.getField(0).getType());
+			assertEquals("key" + i, ((StringField) t.getField(0)).getValue());
+			assertEquals(i, ((IntField) t.getField(1)).getValue());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
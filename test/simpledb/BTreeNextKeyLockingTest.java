@@ -133,9 +133,9 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 
 		while(!bw1.succeeded() && bw1.getError() == null) {
 			Thread.sleep(POLL_INTERVAL);
-			if(bw1.succeeded()) {
-				Database.getBufferPool().transactionComplete(tid1);
-			}
+		}
+		if(bw1.succeeded()) {
+			Database.getBufferPool().transactionComplete(tid1);
 		}
 
 		// clean up
@@ -235,9 +235,9 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 
 		while(!bw1.succeeded() && bw1.getError() == null) {
 			Thread.sleep(POLL_INTERVAL);
-			if(bw1.succeeded()) {
-				Database.getBufferPool().transactionComplete(tid1);
-			}
+		}
+		if(bw1.succeeded()) {
+			Database.getBufferPool().transactionComplete(tid1);
 		}
 
 		// clean up
@@ -139,6 +139,32 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.transactionComplete() writing out the pages a
+     * transaction dirtied, including pages it holds no lock on, and no others
+     */
+    @Test public void commitFlushesOwnPages() throws Exception {
+    	HeapFileDuplicates hfd = new HeapFileDuplicates(empty.getFile(), empty.getTupleDesc(), 3);
+    	Database.getCatalog().addTable(hfd, SystemTestUtil.getUUID());
+    	Database.getBufferPool().insertTuple(tid, hfd.getId(), Utility.getHeapTuple(1, 2));
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+    	TransactionId other = new TransactionId();
+    	DbFileIterator it = hf.iterator(other);
+    	it.open();
+    	Database.getBufferPool().deleteTuple(other, it.next());
+    	it.close();
+
+    	Database.getBufferPool().transactionComplete(tid);
+    	for (int i = hfd.numPages() - 3; i < hfd.numPages(); ++i) {
+    		Page p = Database.getBufferPool().getPageCache().peek(new HeapPageId(hfd.getId(), i));
+    		assertNull(p.isDirty());
+    		assertEquals(503, ((HeapPage) hfd.readPage(p.getId())).getNumEmptySlots());
+    	}
+    	Page p = Database.getBufferPool().getPageCache().peek(new HeapPageId(hf.getId(), 0));
+    	assertEquals(other, p.isDirty());
+    	Database.getBufferPool().transactionComplete(other, false);
+    }
+
     /**
      * JUnit suite target
      */
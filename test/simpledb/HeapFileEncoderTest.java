@@ -0,0 +1,113 @@
+package simpledb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File writeInput(int rows) throws IOException {
+        File in = File.createTempFile("encoder", ".txt");
+        in.deleteOnExit();
+        Random r = new Random(830);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(in))) {
+            for (int i = 0; i < rows; i++) {
+                bw.write(r.nextInt() + "|name" + r.nextInt(1000) + "\n");
+                if (i % 1000 == 0)
+                    bw.write("\n");
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convertParallel(): output must match convert()
+     */
+    @Test public void convertParallelMatchesConvert() throws Exception {
+        Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+        for (int rows : new int[] { 0, 7, 5000 }) {
+            File in = writeInput(rows);
+            File expected = File.createTempFile("expected", ".dat");
+            File actual = File.createTempFile("actual", ".dat");
+            expected.deleteOnExit();
+            actual.deleteOnExit();
+
+            HeapFileEncoder.convert(in, expected, BufferPool.getPageSize(), 2, types, '|');
+            HeapFileEncoder.convertParallel(in, actual, BufferPool.getPageSize(), 2, types, '|', 3);
+            assertTrue(Arrays.equals(TestUtil.readFileBytes(expected.getAbsolutePath()),
+                    TestUtil.readFileBytes(actual.getAbsolutePath())));
+        }
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() with a variable-length field
+     */
+    @Test public void convertVariableLength() throws Exception {
+        File in = writeInput(5000);
+        File out = File.createTempFile("varstring", ".dat");
+        out.deleteOnExit();
+        Type[] types = new Type[] { Type.INT_TYPE, Type.VAR_STRING_TYPE };
+        HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2, types, '|');
+        // the strings are at most 7 characters, so rows take 19 bytes with
+        // their slot entry, instead of 136 + 1 bits of header
+        assertTrue(out.length() < 5000 * 20);
+
+        HeapFile hf = new HeapFile(out, new TupleDesc(types));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        BufferedReader br = new BufferedReader(new FileReader(in));
+        int count = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty())
+                continue;
+            String[] fields = line.split("\\|");
+            assertTrue(it.hasNext());
+            Tuple t = it.next();
+            assertEquals(Integer.parseInt(fields[0]), ((IntField) t.getField(0)).getValue());
+            assertEquals(fields[1], ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        br.close();
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(5000, count);
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convertParallel() on a malformed line
+     */
+    @Test(expected = IOException.class)
+    public void convertParallelRejectsMalformedLine() throws Exception {
+        File in = File.createTempFile("encoder", ".txt");
+        in.deleteOnExit();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(in))) {
+            bw.write("1,2\n3\n");
+        }
+        File out = File.createTempFile("out", ".dat");
+        out.deleteOnExit();
+        HeapFileEncoder.convertParallel(in, out, BufferPool.getPageSize(), 2,
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ',', 2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
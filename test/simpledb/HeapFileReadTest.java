@@ -1,12 +1,14 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -125,6 +127,100 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    @Test
+    public void testIteratorReadAhead() throws Exception {
+        HeapFile multiPageFile = SystemTestUtil.createRandomHeapFile(2, 5000,
+                null, null);
+        BufferPool bufferPool = Database.getBufferPool();
+        bufferPool.setReadAheadPages(4);
+
+        DbFileIterator it = multiPageFile.iterator(tid);
+        it.open();
+        // opening the scan requests the first window; wait for it to land
+        for (int i = 0; i < 500 && bufferPool.getPrefetchCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(bufferPool.getPrefetchCount() > 0);
+
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            count += 1;
+        }
+        it.close();
+        assertEquals(5000, count);
+        assertTrue(bufferPool.getPrefetchHitCount() > 0);
+        assertTrue(bufferPool.getPrefetchHitRate() <= 1.0);
+    }
+
+    /**
+     * Unit test for read-ahead skipping a page that was loaded, changed,
+     * written and evicted while the read-ahead was reading the old image
+     */
+    @Test
+    public void readAheadSkipsPageEvictedMeanwhile() throws Exception {
+        CountDownLatch read = new CountDownLatch(1);
+        CountDownLatch install = new CountDownLatch(1);
+        CountDownLatch returned = new CountDownLatch(1);
+        HeapFile slow = new HeapFile(hf.getFile(), td) {
+            @Override
+            public Page readPage(PageId pid) {
+                Page page = super.readPage(pid);
+                if (Thread.currentThread().getName().equals("simpledb-read-ahead")) {
+                    read.countDown();
+                    try {
+                        install.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    returned.countDown();
+                }
+                return page;
+            }
+        };
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        BufferPool bufferPool = Database.resetBufferPool(1);
+        bufferPool.setReadAheadPages(1);
+        HeapPageId pid = new HeapPageId(slow.getId(), 0);
+
+        bufferPool.readAhead(Collections.singletonList(pid));
+        read.await();
+        TransactionId writer = new TransactionId();
+        bufferPool.insertTuple(writer, slow.getId(), Utility.getHeapTuple(-1, 2));
+        bufferPool.transactionComplete(writer);
+        bufferPool.getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+        install.countDown();
+        returned.await();
+        Thread.sleep(100);
+
+        assertEquals(0, bufferPool.getPrefetchCount());
+        assertArrayEquals(slow.readPage(pid).getPageData(),
+                bufferPool.getPage(tid, pid, Permissions.READ_ONLY).getPageData());
+        bufferPool.transactionComplete(tid);
+        // the other tests expect a pool of the default size
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped scan mode
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile twoPageFile = SystemTestUtil.createRandomHeapFile(2, 520,
+                null, null);
+        twoPageFile.setMemoryMapped(true);
+        for (int i = 0; i < twoPageFile.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(twoPageFile.getId(), i);
+            HeapPage page = (HeapPage) twoPageFile.readPage(pid);
+            twoPageFile.setMemoryMapped(false);
+            HeapPage expected = (HeapPage) twoPageFile.readPage(pid);
+            twoPageFile.setMemoryMapped(true);
+            assertArrayEquals(expected.getPageData(), page.getPageData());
+        }
+        assertNull(twoPageFile.readPage(new HeapPageId(twoPageFile.getId(), twoPageFile.numPages())));
+    }
+
     /**
      * JUnit suite target
      */
@@ -7,12 +7,22 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +60,326 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.addTuple() reusing a slot freed by deleteTuple()
+     */
+    @Test public void addTupleReusesFreedSlot() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 1008; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple() finding a slot that has only been
+     * freed in the BufferPool's copy of a page
+     */
+    @Test public void addTupleSeesSlotFreedInBufferPool() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        assertEquals(1, full.numPages());
+        DbFileIterator it = full.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+
+        Database.getBufferPool().deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(1, 2);
+        full.insertTuple(tid, t);
+        assertEquals(1, full.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple() skipping a slotted page that has an
+     * empty slot but already turned away a tuple as long as the one added
+     */
+    @Test public void addTupleSkipsPageWithoutRoom() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.VAR_STRING_TYPE });
+        File f = File.createTempFile("varstring", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; hf.numPages() < 2; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("s" + i, Type.STRING_LEN, Type.VAR_STRING_TYPE));
+            hf.insertTuple(tid, t);
+            tuples.add(t);
+        }
+        hf.deleteTuple(tid, tuples.get(0));
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        String longString = new String(chars);
+        Tuple longer = new Tuple(td);
+        longer.setField(0, new IntField(-1));
+        longer.setField(1, new StringField(longString, Type.STRING_LEN, Type.VAR_STRING_TYPE));
+        hf.insertTuple(tid, longer);
+        assertEquals(1, longer.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        // a page known to be too full is not even locked
+        TransactionId writer = new TransactionId();
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        Database.getBufferPool().getPage(writer, first, Permissions.READ_WRITE);
+        longer = new Tuple(td);
+        longer.setField(0, new IntField(-2));
+        longer.setField(1, new StringField(longString, Type.STRING_LEN, Type.VAR_STRING_TYPE));
+        hf.insertTuple(tid, longer);
+        assertEquals(1, longer.getRecordId().getPageId().getPageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, first));
+        Database.getBufferPool().transactionComplete(writer);
+
+        // while a short tuple still goes to the empty slot
+        Tuple shorter = new Tuple(td);
+        shorter.setField(0, new IntField(-3));
+        shorter.setField(1, new StringField("s", Type.STRING_LEN, Type.VAR_STRING_TYPE));
+        hf.insertTuple(tid, shorter);
+        assertEquals(0, shorter.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple() on a table using slotted pages
+     */
+    @Test public void addTupleSlotted() throws Exception {
+        empty.setSlotted(true);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 600; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            tuples.add(t);
+        }
+        // 8 byte records plus a 4 byte slot entry: 341 tuples per page
+        assertEquals(2, empty.numPages());
+        for (int i = 0; i < 600; i += 2) {
+            empty.deleteTuple(tid, tuples.get(i));
+        }
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(2 * count + 1, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(300, count);
+
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        byte[] data = page.getPageData();
+        assertEquals(1, data[0]);
+        data[0] = 7;
+        try {
+            new HeapPage(page.getId(), data);
+            fail("expected IOException for an unknown page format version");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.bulkLoad()
+     */
+    @Test public void bulkLoad() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 70 + 3; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(71, empty.bulkLoad(tid, tuples.iterator()));
+        assertEquals(72, empty.numPages());
+        assertEquals(LockMode.X, Database.getBufferPool().getLockManager().getTableLockMode(tid, empty.getId()));
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+
+        // inserts still find room without appending a page
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(72, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.bulkLoad() with a tuple of the wrong schema,
+     * after a first batch of pages and their checksums have been written
+     */
+    @Test public void bulkLoadRejectsWrongTupleDesc() throws Exception {
+        empty.setChecksummed(true);
+        File sums = PageChecksums.getChecksumFile(empty.getFile());
+        long sumsLength = sums.length();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 64 + 1; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        tuples.add(Utility.getHeapTuple(0, 3));
+        try {
+            empty.bulkLoad(tuples.iterator());
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(1, empty.numPages());
+        assertEquals(sumsLength, sums.length());
+        empty.setChecksummed(false);
+    }
+
+    /**
+     * Unit test for HeapFile.bulkLoad() failing after a memory-mapped scan
+     * has mapped some of the pages it appended
+     */
+    @Test public void bulkLoadFailureUnmapsPages() throws Exception {
+        empty.setMemoryMapped(true);
+        HeapPageId appended = new HeapPageId(empty.getId(), 10);
+        Iterator<Tuple> tuples = new Iterator<Tuple>() {
+            int i = 0;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public Tuple next() {
+                // the first batch of 64 pages is on disk by now
+                if (i == 504 * 64 + 1) {
+                    assertNotNull(empty.readPage(appended));
+                    throw new IllegalStateException("source failed");
+                }
+                return Utility.getHeapTuple(i++, 2);
+            }
+        };
+        try {
+            empty.bulkLoad(tuples);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, empty.numPages());
+        assertNull(empty.readPage(appended));
+    }
+
+    /**
+     * Unit test for HeapFile.setCompressed()
+     */
+    @Test public void compressed() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, 16, null, tuples);
+        long plainLength = hf.getFile().length();
+        int pages = hf.numPages();
+
+        hf.setCompressed(true);
+        assertTrue(hf.isCompressed());
+        assertTrue(new HeapFile(hf.getFile(), hf.getTupleDesc()).isCompressed());
+        assertEquals(pages, hf.numPages());
+        assertTrue(hf.getFile().length() < plainLength / 2);
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        // updated pages and bulk loaded pages are appended to the table
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        tuples.add(Arrays.asList(1, 2));
+        List<Tuple> loaded = new ArrayList<>();
+        for (int i = 0; i < 600; ++i) {
+            loaded.add(Utility.getHeapTuple(i, 2));
+            tuples.add(Arrays.asList(i, i));
+        }
+        assertEquals(2, hf.bulkLoad(loaded.iterator()));
+        assertEquals(pages + 2, hf.numPages());
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        hf.setCompressed(false);
+        assertFalse(hf.isCompressed());
+        assertEquals((long) (pages + 2) * BufferPool.getPageSize(), hf.getFile().length());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for HeapFile.setChecksummed() detecting a torn page write
+     */
+    @Test public void checksums() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        hf.setChecksummed(true);
+        assertTrue(new HeapFile(hf.getFile(), hf.getTupleDesc()).isChecksummed());
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+
+        // pages written in full verify against their new checksum
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+        byte[] written = page.getPageData();
+        assertTrue(Arrays.equals(written, hf.readPage(pid).getPageData()));
+
+        // a write that stopped half way through the page does not
+        int size = BufferPool.getPageSize();
+        try (RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw")) {
+            raf.seek(size + size / 2);
+            raf.write(new byte[size / 2]);
+        }
+        try {
+            hf.readPage(pid);
+            fail("expected a checksum mismatch");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof DbException);
+        }
+        try {
+            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            fail("expected a checksum mismatch");
+        } catch (DbException e) {
+            // expected
+        }
+
+        hf.setChecksummed(false);
+        assertFalse(PageChecksums.getChecksumFile(hf.getFile()).exists());
+        assertNotNull(hf.readPage(pid));
+    }
+
+    /**
+     * Unit test for PageChecksums.force() forcing the table file at most once
+     * for a batch of stamps that drop checksums of images written since the
+     * table file was last forced
+     */
+    @Test public void checksumsForceTableOncePerBatch() throws Exception {
+        File file = File.createTempFile("checksums", ".dat");
+        file.deleteOnExit();
+        PageChecksums.getChecksumFile(file).deleteOnExit();
+        int[] tableForces = new int[1];
+        PageChecksums sums = new PageChecksums(file, () -> tableForces[0]++);
+        byte[] page = new byte[BufferPool.getPageSize()];
+        for (int round = 1; round <= 4; ++round) {
+            for (int i = 0; i < 4; ++i) {
+                page[0] = (byte) round;
+                page[1] = (byte) i;
+                sums.stamp(i, page);
+            }
+            sums.force();
+        }
+        // the first two rounds drop no checksum, the other two one table force each
+        assertEquals(2, tableForces[0]);
+        sums.force();
+        assertEquals(2, tableForces[0]);
+
+        // checksums only reach the file when forced
+        sums.stamp(0, new byte[page.length]);
+        assertEquals(4 * 8, PageChecksums.getChecksumFile(file).length());
+        sums.close();
+        assertTrue(new PageChecksums(file, () -> tableForces[0]++).verify(3, page));
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
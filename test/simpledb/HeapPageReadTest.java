@@ -9,12 +9,14 @@ import simpledb.systemtest.SystemTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -102,6 +104,46 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() on a page whose tuples have been
+     * only partially decoded
+     */
+    @Test public void getPageDataPartiallyDecoded() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple tup = it.next();
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) tup.getField(1)).getValue());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+        page.deleteTuple(it.next());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Iterator<Tuple> copyIt = copy.iterator();
+        copyIt.next();
+        assertEquals(1, ((IntField) copyIt.next().getField(0)).getValue());
+        assertEquals(EXAMPLE_VALUES[2][0], ((IntField) copyIt.next().getField(0)).getValue());
+    }
+
+    /**
+     * Unit test for Tuple.detach() letting go of the page a tuple was read
+     * from, while keeping every field of it
+     */
+    @Test public void detachReleasesPage() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Tuple tup = page.iterator().next();
+        WeakReference<HeapPage> ref = new WeakReference<>(page);
+        page = null;
+
+        tup.detach();
+        for (int i = 0; i < 10 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertEquals(EXAMPLE_VALUES[0][0], ((IntField) tup.getField(0)).getValue());
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) tup.getField(1)).getValue());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -1,7 +1,10 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -11,10 +14,14 @@ import org.junit.Test;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
@@ -131,6 +138,60 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.addTuple() and deleteTuple() on a table with a
+     * variable-length field, which uses the slotted page layout
+     */
+    @Test public void addTupleVariableLength() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.VAR_STRING_TYPE });
+        HeapPageId varPid = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(varPid, HeapPage.createEmptyPageData());
+
+        // short strings pack many more rows than the 132 byte fixed-size slots
+        List<Tuple> added = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("s" + i, Type.STRING_LEN, Type.VAR_STRING_TYPE));
+            if (!page.hasRoomFor(t)) {
+                break;
+            }
+            page.insertTuple(t);
+            added.add(t);
+        }
+        assertTrue(added.size() > 100);
+
+        // a longer string fits once a few short ones are gone
+        for (int i = 3; i < 6; i++) {
+            page.deleteTuple(added.get(i));
+        }
+        Tuple longer = new Tuple(td);
+        longer.setField(0, new IntField(-1));
+        longer.setField(1, new StringField("a longer string", Type.STRING_LEN, Type.VAR_STRING_TYPE));
+        assertTrue(page.hasRoomFor(longer));
+        page.insertTuple(longer);
+        assertEquals(3, longer.getRecordId().getTupleNumber());
+
+        HeapPage copy = new HeapPage(varPid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < added.size(); i++) {
+            if (i == 4 || i == 5) {
+                continue;
+            }
+            Tuple t = it.next();
+            if (i == 3) {
+                assertEquals(-1, ((IntField) t.getField(0)).getValue());
+                assertEquals("a longer string", ((StringField) t.getField(1)).getValue());
+            } else {
+                assertEquals(i, ((IntField) t.getField(0)).getValue());
+                assertEquals("s" + i, ((StringField) t.getField(1)).getValue());
+            }
+        }
+        assertFalse(it.hasNext());
+        assertTrue(Arrays.equals(page.getPageData(), copy.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,8 +1,14 @@
 package simpledb;
 
+import java.util.Arrays;
+import java.util.HashSet;
+
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
@@ -11,6 +17,9 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -198,6 +207,321 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /** Acquires a lock from the LockManager in a thread of its own. */
+  private static class LockWaiter extends Thread {
+    private final LockManager lm;
+    private final TransactionId tid;
+    private final PageId pid;
+    private final Permissions perm;
+    volatile boolean acquired;
+
+    LockWaiter(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+      this.lm = lm;
+      this.tid = tid;
+      this.pid = pid;
+      this.perm = perm;
+      start();
+    }
+
+    public void run() {
+      try {
+        lm.acquireLock(tid, pid, perm, 10000);
+        acquired = true;
+      } catch (TransactionAbortedException e) {
+        // leaves acquired false
+      }
+    }
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() handing a released lock to the
+   * transaction waiting for it.
+   */
+  @Test public void waiterWokenOnRelease() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE, 0);
+    LockWaiter w = new LockWaiter(lm, tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertFalse(w.acquired);
+
+    lm.releaseLock(tid1, p0);
+    w.join(TIMEOUT);
+    assertTrue(w.acquired);
+    assertTrue(lm.holdsLock(tid2, p0));
+    assertFalse(lm.holdsLock(tid1, p0));
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() granting waiting requests in
+   * FIFO order: a reader arriving after a waiting writer waits behind it.
+   */
+  @Test public void waitersGrantedInOrder() throws Exception {
+    LockManager lm = bp.getLockManager();
+    TransactionId tid3 = new TransactionId();
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    LockWaiter writer = new LockWaiter(lm, tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    LockWaiter reader = new LockWaiter(lm, tid3, p0, Permissions.READ_ONLY);
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired);
+    assertFalse(reader.acquired);
+
+    lm.releaseAllLock(tid1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    assertFalse(reader.acquired);
+
+    lm.releaseAllLock(tid2);
+    reader.join(TIMEOUT);
+    assertTrue(reader.acquired);
+    lm.releaseAllLock(tid3);
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() letting a lock upgrade go ahead
+   * of requests that were waiting before it.
+   */
+  @Test public void upgradeGoesFirst() throws Exception {
+    LockManager lm = bp.getLockManager();
+    TransactionId tid3 = new TransactionId();
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid2, p0, Permissions.READ_ONLY, 0);
+    LockWaiter writer = new LockWaiter(lm, tid3, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    LockWaiter upgrade = new LockWaiter(lm, tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertFalse(upgrade.acquired);
+
+    lm.releaseAllLock(tid1);
+    upgrade.join(TIMEOUT);
+    assertTrue(upgrade.acquired);
+    assertFalse(writer.acquired);
+
+    lm.releaseAllLock(tid2);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    lm.releaseAllLock(tid3);
+  }
+
+  /**
+   * Unit test for LockManager locking pages with the same page number in
+   * different tables independently.
+   */
+  @Test public void acquireWriteLocksOnSamePageNumberOfTwoTables() throws Exception {
+    LockManager lm = bp.getLockManager();
+    PageId other = new HeapPageId(empty.getId() + 1, 0);
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE, 0);
+    lm.acquireLock(tid2, other, Permissions.READ_WRITE, 0);
+    assertTrue(lm.holdsLock(tid1, p0));
+    assertTrue(lm.holdsLock(tid2, other));
+    assertFalse(lm.holdsLock(tid2, p0));
+  }
+
+  /**
+   * Unit test for LockManager.releaseAllLock() releasing exactly the pages
+   * the transaction has locked.
+   */
+  @Test public void releaseAllLocks() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid1, p1, Permissions.READ_WRITE, 0);
+    lm.acquireLock(tid2, p0, Permissions.READ_ONLY, 0);
+    assertEquals(new HashSet<>(Arrays.asList(p0, p1)), lm.getLockedPages(tid1));
+
+    lm.releaseAllLock(tid1);
+    assertTrue(lm.getLockedPages(tid1).isEmpty());
+    assertFalse(lm.holdsLock(tid1, p0));
+    assertFalse(lm.holdsLock(tid1, p1));
+    assertTrue(lm.holdsLock(tid2, p0));
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() aborting the younger transaction
+   * of a deadlock as soon as the deadlock forms, when it is the one closing
+   * the cycle.
+   */
+  @Test public void deadlockAbortsRequester() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE, 0);
+    lm.acquireLock(tid2, p1, Permissions.READ_WRITE, 0);
+    LockWaiter older = new LockWaiter(lm, tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+
+    long start = System.currentTimeMillis();
+    try {
+      lm.acquireLock(tid2, p0, Permissions.READ_WRITE, 10000);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(1, lm.getDeadlockCount());
+    assertFalse(older.acquired);
+
+    lm.releaseAllLock(tid2);
+    older.join(TIMEOUT);
+    assertTrue(older.acquired);
+    lm.releaseAllLock(tid1);
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() aborting the younger transaction
+   * of a deadlock as soon as the deadlock forms, when it was already waiting.
+   */
+  @Test public void deadlockAbortsYoungerWaiter() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid2, p0, Permissions.READ_ONLY, 0);
+    LockWaiter younger = new LockWaiter(lm, tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    LockWaiter older = new LockWaiter(lm, tid1, p0, Permissions.READ_WRITE);
+    younger.join(TIMEOUT);
+    assertFalse(younger.isAlive());
+    assertFalse(younger.acquired);
+
+    lm.releaseAllLock(tid2);
+    older.join(TIMEOUT);
+    assertTrue(older.acquired);
+    lm.releaseAllLock(tid1);
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() taking a deadlock victim's
+   * request out of its queue, so that the request waiting behind it is
+   * granted without waiting for the victim.
+   */
+  @Test public void deadlockVictimLeavesQueue() throws Exception {
+    LockManager lm = bp.getLockManager();
+    TransactionId tid3 = new TransactionId();
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid2, p1, Permissions.READ_WRITE, 0);
+    LockWaiter victim = new LockWaiter(lm, tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    LockWaiter reader = new LockWaiter(lm, tid3, p0, Permissions.READ_ONLY);
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired);
+
+    LockWaiter older = new LockWaiter(lm, tid1, p1, Permissions.READ_WRITE);
+    victim.join(TIMEOUT);
+    reader.join(TIMEOUT);
+    assertFalse(victim.acquired);
+    assertTrue(reader.acquired);
+    assertEquals(1, lm.getDeadlockCount());
+    assertFalse(older.acquired);
+
+    lm.releaseAllLock(tid2);
+    older.join(TIMEOUT);
+    assertTrue(older.acquired);
+    lm.releaseAllLock(tid1);
+    lm.releaseAllLock(tid3);
+  }
+
+  /**
+   * Unit test for LockManager.releaseLock() dropping the waits-for edge to
+   * the releasing transaction while the request it blocked still waits for
+   * another holder, so that the releaser waiting on that request later is
+   * not taken for a deadlock.
+   */
+  @Test public void releaseDropsWaitsForEdge() throws Exception {
+    LockManager lm = bp.getLockManager();
+    TransactionId tid3 = new TransactionId();
+    lm.acquireLock(tid3, p1, Permissions.READ_WRITE, 0);
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid2, p0, Permissions.READ_ONLY, 0);
+    LockWaiter writer = new LockWaiter(lm, tid3, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+
+    lm.releaseLock(tid1, p0);
+    LockWaiter reader = new LockWaiter(lm, tid1, p1, Permissions.READ_ONLY);
+    Thread.sleep(TIMEOUT);
+    assertEquals(0, lm.getDeadlockCount());
+    assertTrue(writer.isAlive());
+    assertTrue(reader.isAlive());
+
+    lm.releaseAllLock(tid2);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    lm.releaseAllLock(tid3);
+    reader.join(TIMEOUT);
+    assertTrue(reader.acquired);
+    lm.releaseAllLock(tid1);
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() taking intention locks on the
+   * table of each page it locks, which keep other transactions from locking
+   * the whole table.
+   */
+  @Test public void intentionLocks() throws Exception {
+    LockManager lm = bp.getLockManager();
+    TransactionId tid3 = new TransactionId();
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid2, p1, Permissions.READ_WRITE, 0);
+    assertEquals(LockMode.IS, lm.getTableLockMode(tid1, empty.getId()));
+    assertEquals(LockMode.IX, lm.getTableLockMode(tid2, empty.getId()));
+
+    lm.acquireTableLock(tid3, empty.getId(), LockMode.IS, 0);
+    try {
+      lm.acquireTableLock(tid3, empty.getId(), LockMode.S, 0);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(LockMode.IS, lm.getTableLockMode(tid3, empty.getId()));
+
+    lm.releaseAllLock(tid2);
+    lm.acquireTableLock(tid3, empty.getId(), LockMode.S, 0);
+    assertEquals(LockMode.S, lm.getTableLockMode(tid3, empty.getId()));
+    lm.releaseAllLock(tid1);
+    lm.releaseAllLock(tid3);
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() escalating to a table lock once
+   * a transaction holds the threshold number of page locks on the table.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    LockManager lm = bp.getLockManager();
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    lm.setEscalationThreshold(2);
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid1, p1, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid1, p2, Permissions.READ_ONLY, 0);
+    assertEquals(1, lm.getEscalationCount());
+    assertEquals(LockMode.S, lm.getTableLockMode(tid1, empty.getId()));
+    assertEquals(new HashSet<>(Arrays.asList(p0, p1)), lm.getLockedPages(tid1));
+    assertTrue(lm.holdsLock(tid1, p2));
+
+    LockWaiter writer = new LockWaiter(lm, tid2, p2, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired);
+    lm.releaseAllLock(tid1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    lm.releaseAllLock(tid2);
+  }
+
+  /**
+   * Unit test for LockManager.acquireLock() going on with page locks when
+   * the table lock to escalate to cannot be granted right away.
+   */
+  @Test public void escalationNeverWaits() throws Exception {
+    LockManager lm = bp.getLockManager();
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    lm.setEscalationThreshold(2);
+    lm.acquireLock(tid2, p2, Permissions.READ_WRITE, 0);
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+    lm.acquireLock(tid1, p1, Permissions.READ_WRITE, 0);
+    PageId p3 = new HeapPageId(empty.getId(), 3);
+    lm.acquireLock(tid1, p3, Permissions.READ_ONLY, 0);
+    assertEquals(0, lm.getEscalationCount());
+    assertEquals(LockMode.IX, lm.getTableLockMode(tid1, empty.getId()));
+    assertEquals(new HashSet<>(Arrays.asList(p0, p1, p3)), lm.getLockedPages(tid1));
+    assertFalse(lm.holdsLock(tid1, p2));
+    lm.releaseAllLock(tid1);
+    lm.releaseAllLock(tid2);
+  }
+
   /**
    * JUnit suite target
    */
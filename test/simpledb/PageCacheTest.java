@@ -0,0 +1,127 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageCacheTest extends SimpleDbTestBase {
+    private PageCache cache;
+    private HeapPage[] pages;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        cache = new PageCache(4, new ClockPolicy(4));
+        pages = new HeapPage[4];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = new HeapPage(new HeapPageId(-1, i), HeapPage.createEmptyPageData());
+            cache.put(pages[i].getId(), pages[i]);
+        }
+    }
+
+    /**
+     * Unit test for PageCache.get() and PageCache.remove()
+     */
+    @Test public void getAndRemove() {
+        assertEquals(4, cache.size());
+        assertSame(pages[2], cache.get(pages[2].getId()));
+        assertSame(pages[2], cache.remove(pages[2].getId()));
+        assertNull(cache.get(pages[2].getId()));
+        assertNull(cache.remove(pages[2].getId()));
+        assertEquals(3, cache.size());
+
+        // the freed frame is reused
+        cache.put(pages[2].getId(), pages[2]);
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.pages().size());
+    }
+
+    /**
+     * Unit test for ClockPolicy preferring pages that were looked up since
+     * they were added
+     */
+    @Test public void evictSkipsReferencedPages() {
+        cache.get(pages[0].getId());
+        cache.get(pages[1].getId());
+        cache.get(pages[3].getId());
+        assertSame(pages[2], cache.evict(p -> true));
+        // page 3 gets its second chance, page 0 used its own up on the way
+        assertSame(pages[0], cache.evict(p -> true));
+        assertTrue(cache.contains(pages[1].getId()));
+        assertTrue(cache.contains(pages[3].getId()));
+    }
+
+    /**
+     * Unit test for PageCache.evict() skipping pages it may not evict
+     */
+    @Test public void evictSkipsDirtyPages() {
+        for (HeapPage page : pages) {
+            page.markDirty(true, new TransactionId());
+        }
+        assertNull(cache.evict(p -> p.isDirty() == null));
+        pages[1].markDirty(false, null);
+        assertSame(pages[1], cache.evict(p -> p.isDirty() == null));
+        assertEquals(3, cache.size());
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy keeping a reused page while a scan goes
+     * through the cache
+     */
+    @Test public void twoQueueResistsScans() {
+        TwoQueuePolicy policy = new TwoQueuePolicy(8);
+        Set<PageId> cached = new HashSet<>();
+        PageId hot = new HeapPageId(-1, 0);
+        // the hot page is read, evicted and read again, which promotes it
+        policy.pageAdded(hot);
+        cached.add(hot);
+        for (int i = 1; i <= 2; i++) {
+            add(policy, cached, new HeapPageId(-1, i));
+        }
+        assertEquals(hot, policy.chooseVictim(cached::contains));
+        policy.pageRemoved(hot);
+        cached.remove(hot);
+        add(policy, cached, hot);
+
+        for (int i = 100; i < 200; i++) {
+            PageId pid = new HeapPageId(-1, i);
+            if (cached.size() == 8) {
+                PageId victim = policy.chooseVictim(cached::contains);
+                assertNotEquals(hot, victim);
+                policy.pageRemoved(victim);
+                cached.remove(victim);
+            }
+            add(policy, cached, pid);
+            if (i % 20 == 0) {
+                policy.pageAccessed(hot);
+            }
+        }
+        assertTrue(cached.contains(hot));
+    }
+
+    private static void add(EvictionPolicy policy, Set<PageId> cached, PageId pid) {
+        policy.pageAdded(pid);
+        cached.add(pid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCacheTest.class);
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures BufferPool.getPage hit throughput with 1, 4, 16 and 64 threads.
+ * The table fits in the pool and is read into it before the clock starts,
+ * so every call is a hit; each thread runs read-only transactions of
+ * PAGES_PER_TRANSACTION random pages, so the figures include taking the
+ * shared page locks as well as the cache lookups.
+ * <p>
+ * Run with "ant cachebench", optionally passing the seconds to run each
+ * number of threads for with -Dseconds= and the eviction policy with
+ * -Dpolicy= (see BufferPool.EVICTION_POLICY_PROPERTY).
+ */
+public class CacheBenchmark {
+
+    private static final int TABLE_PAGES = 256;
+    private static final int PAGES_PER_TRANSACTION = 16;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        System.out.println("threads  hits/s");
+        for (int threads = 1; threads <= 64; threads *= 4) {
+            run(threads, seconds);
+        }
+    }
+
+    private static void run(int threads, double seconds) throws Exception {
+        Database.reset();
+        Database.resetBufferPool(2 * TABLE_PAGES);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        TransactionId warm = new TransactionId();
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            Database.getBufferPool().getPage(warm, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(warm);
+
+        AtomicLong hits = new AtomicLong();
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            Random rand = new Random(w);
+            Thread t = new Thread(() -> {
+                BufferPool bp = Database.getBufferPool();
+                while (System.nanoTime() < end) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (int i = 0; i < PAGES_PER_TRANSACTION; i++) {
+                            bp.getPage(tid, new HeapPageId(table.getId(), rand.nextInt(TABLE_PAGES)),
+                                    Permissions.READ_ONLY);
+                        }
+                        bp.transactionComplete(tid);
+                        hits.addAndGet(PAGES_PER_TRANSACTION);
+                    } catch (TransactionAbortedException e) {
+                        // shared locks never conflict, but count only whole transactions
+                        bp.transactionComplete(tid, false);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%7d  %6.0f%n", threads, hits.get() / elapsed);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Measures commit throughput with 1 to 64 concurrent writers, and how many
+ * times the log is forced per commit. Each writer inserts one tuple per
+ * transaction into a table of its own, so the writers never wait for each
+ * other's locks and only share the log.
+ * <p>
+ * Run with "ant commitbench", optionally passing the seconds to run each
+ * number of writers for with -Dseconds=.
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        System.out.println("writers  commits/s  forces/commit");
+        for (int writers = 1; writers <= 64; writers *= 2) {
+            run(writers, seconds);
+        }
+    }
+
+    private static void run(int writers, double seconds) throws Exception {
+        Database.reset();
+        // room for every writer's dirty page at once
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES + 2 * writers);
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            File f = File.createTempFile("commitbench", ".dat");
+            f.deleteOnExit();
+            tables.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+        }
+        LogFile log = Database.getLogFile();
+        AtomicLong commits = new AtomicLong();
+        long forcesBefore = log.getForceCount();
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+
+        List<Thread> threads = new ArrayList<>();
+        for (HeapFile table : tables) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int i = 0; System.nanoTime() < end; i++) {
+                        Transaction xact = new Transaction();
+                        xact.start();
+                        try {
+                            Database.getBufferPool().insertTuple(xact.getId(), table.getId(),
+                                    Utility.getHeapTuple(i, 2));
+                            xact.commit();
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            xact.abort();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long forces = log.getForceCount() - forcesBefore;
+        System.out.printf("%7d  %9.0f  %13.2f%n", writers, commits.get() / elapsed,
+                (double) forces / commits.get());
+    }
+}
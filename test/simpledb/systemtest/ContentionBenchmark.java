@@ -0,0 +1,116 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how transactions fare under lock contention with 1 to 64
+ * concurrent workers: commit throughput, the share of transactions aborted
+ * as deadlock victims, and the 99th percentile latency of the transactions
+ * that commit. As in DeadlockTest, each transaction takes a shared lock on
+ * one page and then an exclusive lock on another, both picked at random
+ * from a small table, so concurrent transactions often wait for each other
+ * and form cycles.
+ * <p>
+ * Run with "ant contentionbench", optionally passing the seconds to run each
+ * number of workers for with -Dseconds=.
+ */
+public class ContentionBenchmark {
+
+    private static final int PAGES = 8;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        System.out.println("workers  commits/s  aborted  deadlocks  p99 ms");
+        for (int workers = 1; workers <= 64; workers *= 2) {
+            run(workers, seconds);
+        }
+    }
+
+    private static void run(int workers, double seconds) throws Exception {
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        LockManager lockManager = Database.getBufferPool().getLockManager();
+        long deadlocksBefore = lockManager.getDeadlockCount();
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+
+        List<Worker> threads = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            Worker t = new Worker(table.getId(), new Random(w), end);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long[] latencies = new long[0];
+        long aborts = 0;
+        for (Worker t : threads) {
+            int from = latencies.length;
+            latencies = Arrays.copyOf(latencies, from + t.commits);
+            System.arraycopy(t.latencies, 0, latencies, from, t.commits);
+            aborts += t.aborts;
+        }
+        Arrays.sort(latencies);
+        int commits = latencies.length;
+        double p99 = commits == 0 ? 0 : latencies[Math.min(commits - 1, (int) (commits * 0.99))] / 1e6;
+        System.out.printf("%7d  %9.0f  %6.1f%%  %9d  %6.2f%n", workers, commits / elapsed,
+                100.0 * aborts / Math.max(1, commits + aborts),
+                lockManager.getDeadlockCount() - deadlocksBefore, p99);
+    }
+
+    /** Runs transactions until the end time, timing those that commit. */
+    private static class Worker extends Thread {
+        private final int tableId;
+        private final Random rand;
+        private final long end;
+        long[] latencies = new long[1024];
+        int commits;
+        long aborts;
+
+        Worker(int tableId, Random rand, long end) {
+            this.tableId = tableId;
+            this.rand = rand;
+            this.end = end;
+        }
+
+        public void run() {
+            BufferPool bp = Database.getBufferPool();
+            while (System.nanoTime() < end) {
+                TransactionId tid = new TransactionId();
+                long began = System.nanoTime();
+                try {
+                    int first = rand.nextInt(PAGES);
+                    int second = (first + 1 + rand.nextInt(PAGES - 1)) % PAGES;
+                    bp.getPage(tid, new HeapPageId(tableId, first), Permissions.READ_ONLY);
+                    Thread.yield();
+                    bp.getPage(tid, new HeapPageId(tableId, second), Permissions.READ_WRITE);
+                    bp.transactionComplete(tid);
+                    if (commits == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, commits * 2);
+                    }
+                    latencies[commits++] = System.nanoTime() - began;
+                } catch (TransactionAbortedException e) {
+                    bp.transactionComplete(tid, false);
+                    aborts++;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+}
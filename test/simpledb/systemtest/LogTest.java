@@ -11,6 +11,7 @@ import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.SeqScan;
+import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -133,6 +134,7 @@ public class LogTest extends SimpleDbTestBase {
         // adds to the catalog.
         file1 = new File("simple1.db");
         file1.delete();
+        PageChecksums.getChecksumFile(file1).delete();
         file2 = new File("simple2.db");
         file2.delete();
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
@@ -163,6 +165,207 @@ public class LogTest extends SimpleDbTestBase {
             throw new RuntimeException("LogTest:setBeforeImage() not called? patch failed?");
     }
 
+    @Test public void TestCommitForcesLogTwice()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // commit forces the log once for the records of all the pages it
+        // dirtied and once for the commit record, however many pages
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        insertRow(hf2, t1, 2);
+        long forces = Database.getLogFile().getForceCount();
+        t1.commit();
+        assertEquals(2, Database.getLogFile().getForceCount() - forces);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestBTreePageRollback()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // update records of B+ tree pages are read back as pages of the
+        // right class, with the key field of their file
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 1);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreePageId pid = rootPtr.getRootId();
+        assertEquals(BTreePageId.LEAF, pid.pgcateg());
+        BTreeLeafPage before = (BTreeLeafPage) bf.readPage(pid);
+        BTreeLeafPage after = BTreeUtility.createRandomLeafPage(pid, 2, 1, 0, 1000);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getLogFile().logWrite(t.getId(), before, after);
+        bf.writePage(after);
+        Database.getLogFile().rollback(t.getId());
+        assertArrayEquals(before.getPageData(), bf.readPage(pid).getPageData());
+    }
+
+    @Test public void TestDeltaRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // once a page has been logged with full images, later changes to it
+        // are logged as the bytes that changed, and are rolled back and
+        // recovered like full images
+        long length = Database.getLogFile().getRaf().length();
+        doInsert(hf1, 2, -1);
+        assertTrue(Database.getLogFile().getRaf().length() - length < 1000);
+
+        dontInsert(hf1, 3);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 4);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t1, 5);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestCrashAfterRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // logging a page stamps it with the LSN of the record
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Page p = Database.getBufferPool().getPage(t1.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        long lsn = p.getLSN();
+        Database.getBufferPool().flushAllPages();
+        assertTrue(p.getLSN() > lsn);
+        insertRow(hf1, t1, 4);
+        Database.getBufferPool().flushAllPages();
+
+        // *** Test:
+        // recovery rolls T1 back and carries on the log, so that a
+        // transaction after it and a second crash leave the same data
+        crash();
+        doInsert(hf1, 5, -1);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint neither waits for the buffer pool nor writes the
+        // pages of an open transaction
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Thread checkpoint = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(10000);
+            assertFalse(checkpoint.isAlive());
+        }
+        Page p = Database.getBufferPool().getPage(t1.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(t1.getId(), p.isDirty());
+
+        insertRow(hf1, t1, 4);
+        Database.getBufferPool().flushAllPages();
+        doInsert(hf2, 5, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 5, true);
+        t.commit();
+    }
+
+    @Test public void TestTruncateWhileCommitting()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // transactions commit while checkpoints truncate the log, which
+        // keeps the records appended during each truncation
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread committer = new Thread(() -> {
+            try {
+                for (int i = 10; i < 60; i++) {
+                    doInsert(hf2, i, -1);
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        committer.start();
+        while (committer.isAlive()) {
+            Database.getLogFile().logCheckpoint();
+        }
+        committer.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        for (int i = 10; i < 60; i++) {
+            look(hf2, t, i, true);
+        }
+        t.commit();
+    }
+
     @Test public void TestFlushAll()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -349,6 +552,67 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestTornPageCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        hf1.setChecksummed(true);
+        doInsert(hf1, 1, 2);
+        // log the next change to the page with full images
+        Database.getLogFile().logCheckpoint();
+
+        // *** Test:
+        // insert but no commit, and write the page
+        // crash half way through writing it again
+        // recovery repairs the page from the log instead of failing on it
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 8);
+        Database.getBufferPool().flushAllPages();
+        int size = BufferPool.getPageSize();
+        try (RandomAccessFile raf = new RandomAccessFile(file1, "rw")) {
+            raf.write(new byte[size / 2]);
+        }
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 8, false);
+        t.commit();
+        hf1.setChecksummed(false);
+    }
+
+    @Test public void TestLostExtensionCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf2, 1, 2);
+
+        // *** Test:
+        // insert into an empty table but no commit, and log the new page
+        // crash before the write that extended the table reaches the disk
+        // recovery starts the page over from an empty one
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 8);
+        Database.getBufferPool().flushAllPages();
+        try (RandomAccessFile raf = new RandomAccessFile(file1, "rw")) {
+            raf.setLength(0);
+        }
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 8, false);
+        look(hf2, t, 1, true);
+        look(hf2, t, 2, true);
+        t.commit();
+    }
+
     @Test public void TestOpenCommitOpenCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
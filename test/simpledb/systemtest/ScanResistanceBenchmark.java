@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how well each eviction policy keeps a hot set of pages cached
+ * while a full scan of a much larger table runs alongside. One thread reads
+ * random pages of a small hot table, in read-only transactions paced a
+ * millisecond apart, while another scans the large table over and over; the
+ * hot table fits in the pool, but the scanned table is ten times the pool.
+ * Reported are the hit rate of the hot reads, judged by the pages the hot
+ * table had to read from disk, and the throughput of both threads.
+ * <p>
+ * Run with "ant scanbench", optionally passing the seconds to run each
+ * policy for with -Dseconds=.
+ */
+public class ScanResistanceBenchmark {
+
+    private static final int POOL_PAGES = 100;
+    private static final int HOT_PAGES = 60;
+    private static final int SCAN_PAGES = 10 * POOL_PAGES;
+    private static final int HOT_PAGES_PER_TRANSACTION = 8;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        System.out.println("policy  hot hit rate  hot reads/s  scanned pages/s");
+        for (String policy : new String[] { "clock", "2q" }) {
+            run(policy, seconds);
+        }
+    }
+
+    private static void run(String policy, double seconds) throws Exception {
+        Database.reset();
+        System.setProperty(BufferPool.EVICTION_POLICY_PROPERTY, policy);
+        Database.resetBufferPool(POOL_PAGES);
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * HOT_PAGES, null, null);
+        HeapFile scanned = SystemTestUtil.createRandomHeapFile(2, 504 * SCAN_PAGES, null, null);
+
+        AtomicLong hotReads = new AtomicLong();
+        AtomicLong scannedTuples = new AtomicLong();
+        long bytesBefore = hot.getBytesRead();
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+
+        Thread reader = new Thread(() -> {
+            BufferPool bp = Database.getBufferPool();
+            Random rand = new Random(0);
+            try {
+                while (System.nanoTime() < end) {
+                    TransactionId tid = new TransactionId();
+                    for (int i = 0; i < HOT_PAGES_PER_TRANSACTION; i++) {
+                        bp.getPage(tid, new HeapPageId(hot.getId(), rand.nextInt(HOT_PAGES)),
+                                Permissions.READ_ONLY);
+                    }
+                    bp.transactionComplete(tid);
+                    hotReads.addAndGet(HOT_PAGES_PER_TRANSACTION);
+                    Thread.sleep(1);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread scanner = new Thread(() -> {
+            try {
+                while (System.nanoTime() < end) {
+                    TransactionId tid = new TransactionId();
+                    SeqScan scan = new SeqScan(tid, scanned.getId(), "");
+                    scan.open();
+                    while (scan.hasNext() && System.nanoTime() < end) {
+                        scan.next();
+                        scannedTuples.incrementAndGet();
+                    }
+                    scan.close();
+                    Database.getBufferPool().transactionComplete(tid);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        scanner.start();
+        reader.join();
+        scanner.join();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long misses = (hot.getBytesRead() - bytesBefore) / BufferPool.getPageSize();
+        double hitRate = hotReads.get() == 0 ? 0 : 1 - (double) misses / hotReads.get();
+        System.out.printf("%6s  %11.1f%%  %11.0f  %15.0f%n", policy, 100 * hitRate,
+                hotReads.get() / elapsed, scannedTuples.get() / 504.0 / elapsed);
+    }
+}
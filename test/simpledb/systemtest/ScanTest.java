@@ -2,6 +2,7 @@ package simpledb.systemtest;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
@@ -11,6 +12,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -134,6 +136,63 @@ public class ScanTest extends SimpleDbTestBase {
         }
     }
 
+    /** Scans a table using the columnar page layout, returning only some fields. */
+    @Test public void testColumnarProjection() throws Exception {
+        File file = File.createTempFile("columnar", ".dat");
+        file.deleteOnExit();
+        HeapFile f = Utility.openHeapFile(5, file);
+        f.setColumnar(true);
+        List<Tuple> loaded = new ArrayList<>();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            loaded.add(Utility.getHeapTuple(new int[] { i, i + 1, i + 2, i + 3, i + 4 }));
+            tuples.add(Arrays.asList(i + 3, i));
+        }
+        f.bulkLoad(loaded.iterator());
+
+        // updated pages are written back in the columnar layout
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[] { 7, 6, 5, 4, 3 }));
+        tuples.add(Arrays.asList(4, 7));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t", new int[] { 3, 0 });
+        TupleDesc td = scan.getTupleDesc();
+        assertEquals(2, td.numFields());
+        assertEquals("t." + f.getTupleDesc().getFieldName(3), td.getFieldName(0));
+        SystemTestUtil.matchTuples(scan, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Verifies that a large scan reads through its ring and leaves the pool's pages alone. */
+    @Test public void testScanRing() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(4, 20000, null, tuples);
+        BufferPool pool = Database.resetBufferPool(10);
+        pool.setScanRingPages(4);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); ++i) {
+            pool.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+        // pages already in the pool are still used by the scan
+        pool.getPage(tid, new HeapPageId(big.getId(), 3), Permissions.READ_ONLY);
+        int cached = pool.getPageCache().size();
+        assertEquals(hot.numPages() + 1, cached);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "t");
+        SystemTestUtil.matchTuples(scan, tuples);
+        assertEquals(cached, pool.getPageCache().size());
+        for (int i = 0; i < hot.numPages(); ++i) {
+            assertTrue(pool.getPageCache().contains(new HeapPageId(hot.getId(), i)));
+        }
+        pool.transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
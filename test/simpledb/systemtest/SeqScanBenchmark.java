@@ -0,0 +1,60 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures SeqScan throughput over a table that does not fit in the buffer
+ * pool, so that every page of every pass is read from the file. The file
+ * itself stays in the operating system's cache after the first pass, which
+ * makes this a measure of the cost of getting a page from the file into the
+ * pool rather than of the disk.
+ * <p>
+ * Run with "ant scanthroughputbench", optionally passing the seconds to scan
+ * for with -Dseconds=.
+ */
+public class SeqScanBenchmark {
+
+    private static final int TABLE_PAGES = 4096;
+    private static final int POOL_PAGES = 50;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        Database.reset();
+        Database.resetBufferPool(POOL_PAGES);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        scan(table);
+
+        long tuples = 0;
+        int passes = 0;
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        while (System.nanoTime() < end) {
+            tuples += scan(table);
+            passes++;
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double pages = tuples / 504.0;
+        System.out.println("passes  pages/s  MB/s  tuples/s");
+        System.out.printf("%6d  %7.0f  %4.0f  %8.0f%n", passes, pages / elapsed,
+                pages * BufferPool.getPageSize() / elapsed / (1 << 20), tuples / elapsed);
+    }
+
+    private static long scan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        long tuples = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            tuples++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return tuples;
+    }
+}